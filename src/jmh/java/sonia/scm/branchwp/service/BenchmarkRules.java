@@ -0,0 +1,118 @@
+/*
+ * Copyright (c) 2020 - present Cloudogu GmbH
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License as published by the Free
+ * Software Foundation, version 3.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see https://www.gnu.org/licenses/.
+ */
+package sonia.scm.branchwp.service;
+
+import sonia.scm.user.User;
+
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+import static sonia.scm.branchwp.service.BranchWritePermission.Type.ALLOW;
+import static sonia.scm.branchwp.service.BranchWritePermission.Type.DENY;
+
+/**
+ * Generates rule sets, users and branches for the benchmarks.
+ */
+final class BenchmarkRules {
+
+  static final User USER = new User("user-1", "User 1", "user-1@hitchhiker.com");
+
+  private static final int USERS = 50;
+  private static final int GROUPS = 200;
+
+  private BenchmarkRules() {
+  }
+
+  enum Mix {
+    LITERAL, GLOB, TEMPLATED, MIXED
+  }
+
+  static BranchWritePermissions create(int count, Mix mix) {
+    BranchWritePermissions permissions = new BranchWritePermissions();
+    permissions.setEnabled(true);
+    for (int i = 0; i < count; i++) {
+      boolean group = i % 2 == 0;
+      String name = group ? "group-" + (i % GROUPS) : "user-" + (i % USERS);
+      BranchWritePermission.Type type = i % 10 == 0 ? DENY : ALLOW;
+      permissions.getPermissions().add(new BranchWritePermission(pattern(i, mix), name, group, type));
+    }
+    return permissions;
+  }
+
+  private static String pattern(int i, Mix mix) {
+    switch (mix) {
+      case LITERAL:
+        return "branch-" + i;
+      case GLOB:
+        return glob(i);
+      case TEMPLATED:
+        return "{username}/team-" + i + "/*";
+      default:
+        switch (i % 3) {
+          case 0:
+            return "branch-" + i;
+          case 1:
+            return glob(i);
+          default:
+            return "{username}/team-" + i + "/*";
+        }
+    }
+  }
+
+  private static String glob(int i) {
+    switch (i % 3) {
+      case 0:
+        return "feature/team-" + i + "/*";
+      case 1:
+        return "release/" + i + ".*/hotfix-?";
+      default:
+        return "{main,develop}-" + i;
+    }
+  }
+
+  static Set<String> groups(int count) {
+    Set<String> groups = new LinkedHashSet<>();
+    for (int i = 0; i < count; i++) {
+      groups.add("group-" + i);
+    }
+    return groups;
+  }
+
+  static List<String> branches(int count) {
+    List<String> branches = new ArrayList<>(count);
+    for (int i = 0; i < count; i++) {
+      switch (i % 5) {
+        case 0:
+          branches.add("branch-" + i);
+          break;
+        case 1:
+          branches.add("feature/team-" + i + "/some-feature");
+          break;
+        case 2:
+          branches.add("release/" + i + ".1/hotfix-1");
+          break;
+        case 3:
+          branches.add(USER.getName() + "/team-" + i + "/topic");
+          break;
+        default:
+          branches.add("unknown/" + i);
+      }
+    }
+    return branches;
+  }
+}
@@ -0,0 +1,97 @@
+/*
+ * Copyright (c) 2020 - present Cloudogu GmbH
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License as published by the Free
+ * Software Foundation, version 3.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see https://www.gnu.org/licenses/.
+ */
+package sonia.scm.branchwp.service;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import sonia.scm.branchwp.BranchWritePermissionException;
+import sonia.scm.repository.Repository;
+import sonia.scm.repository.RepositoryTestData;
+import sonia.scm.store.InMemoryConfigurationStoreFactory;
+import sonia.scm.store.InMemoryDataStoreFactory;
+
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the check of a whole push, like it is done by the repository hook, through the service with an in-memory
+ * store and group collector. The decision and snapshot caches of the service are switched off, so that every ref is
+ * evaluated against the compiled rules.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PushBenchmark {
+
+  private static final Repository REPOSITORY = RepositoryTestData.createHeartOfGold();
+
+  @Param({"1", "10", "100", "1000", "10000"})
+  private int refs;
+
+  @Param({"100", "1000"})
+  private int rules;
+
+  @Param({"MIXED"})
+  // a string, because the generated harness can not access the package-private enum
+  private String mix;
+
+  @Param({"10"})
+  private int groupsPerUser;
+
+  private BranchWritePermissionService service;
+  private List<String> branches;
+
+  @Setup(Level.Trial)
+  public void setUp() {
+    InMemoryConfigurationStoreFactory storeFactory = new InMemoryConfigurationStoreFactory();
+    storeFactory.withType(BranchWritePermissions.class)
+      .withName("branchWritePermission")
+      .forRepository(REPOSITORY)
+      .build()
+      .set(BenchmarkRules.create(rules, BenchmarkRules.Mix.valueOf(mix)));
+
+    Set<String> groups = BenchmarkRules.groups(groupsPerUser);
+    BranchWritePermissionStore store = new BranchWritePermissionStore(storeFactory, new InMemoryDataStoreFactory(), null);
+
+    service = new BranchWritePermissionService(store, null, username -> groups, new SimpleMeterRegistry(), false);
+    branches = BenchmarkRules.branches(refs);
+  }
+
+  @Benchmark
+  public int checkPush() {
+    try {
+      service.checkAll(BenchmarkRules.USER, REPOSITORY, branches);
+      return 0;
+    } catch (BranchWritePermissionException ex) {
+      return ex.getBranches().size();
+    }
+  }
+}
@@ -0,0 +1,85 @@
+/*
+ * Copyright (c) 2020 - present Cloudogu GmbH
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License as published by the Free
+ * Software Foundation, version 3.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see https://www.gnu.org/licenses/.
+ */
+package sonia.scm.branchwp.service;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the compilation of a rule set and the evaluation of single branches against the compiled rules, without
+ * any caching of decisions.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RuleEvaluationBenchmark {
+
+  private static final int BRANCHES = 100;
+
+  @Param({"10", "100", "1000", "10000"})
+  private int rules;
+
+  @Param({"LITERAL", "GLOB", "TEMPLATED", "MIXED"})
+  // a string, because the generated harness can not access the package-private enum
+  private String mix;
+
+  @Param({"1", "10", "100"})
+  private int groupsPerUser;
+
+  private BranchWritePermissions permissions;
+  private CompiledBranchWritePermissions compiled;
+  private Set<String> groups;
+  private List<String> branches;
+
+  @Setup(Level.Trial)
+  public void setUp() {
+    permissions = BenchmarkRules.create(rules, BenchmarkRules.Mix.valueOf(mix));
+    compiled = CompiledBranchWritePermissions.compile(permissions);
+    groups = BenchmarkRules.groups(groupsPerUser);
+    branches = BenchmarkRules.branches(BRANCHES);
+  }
+
+  @Benchmark
+  public CompiledBranchWritePermissions compile() {
+    return CompiledBranchWritePermissions.compile(permissions);
+  }
+
+  @Benchmark
+  @OutputTimeUnit(TimeUnit.MICROSECONDS)
+  public void evaluate(Blackhole blackhole) {
+    for (String branch : branches) {
+      blackhole.consume(compiled.isPrivileged(BenchmarkRules.USER, groups, branch));
+    }
+  }
+}
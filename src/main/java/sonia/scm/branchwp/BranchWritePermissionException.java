@@ -19,12 +19,44 @@ package sonia.scm.branchwp;
 import sonia.scm.ExceptionWithContext;
 import sonia.scm.repository.Repository;
 
+import java.util.Collection;
+import java.util.List;
+import java.util.stream.Collectors;
+
 import static sonia.scm.ContextEntry.ContextBuilder.entity;
 
 public class BranchWritePermissionException extends ExceptionWithContext {
 
+  /**
+   * Maximum number of branches in the message, a mirror push may be denied for thousands of refs.
+   */
+  private static final int MAX_REPORTED_BRANCHES = 10;
+
+  private final List<String> branches;
+
   public BranchWritePermissionException(Repository repository, String branch) {
     super(entity("Branch", branch).in(repository).build(), "Permission denied to modify branch " + branch);
+    this.branches = List.of(branch);
+  }
+
+  public BranchWritePermissionException(Repository repository, Collection<String> branches) {
+    super(entity("Branch", summarize(branches, 1)).in(repository).build(), "Permission denied to modify branches " + summarize(branches, MAX_REPORTED_BRANCHES));
+    this.branches = List.copyOf(branches);
+  }
+
+  private static String summarize(Collection<String> branches, int limit) {
+    String listed = branches.stream().limit(limit).collect(Collectors.joining(", "));
+    if (branches.size() <= limit) {
+      return listed;
+    }
+    return listed + " and " + (branches.size() - limit) + " more";
+  }
+
+  /**
+   * Returns all branches the user is not permitted to modify.
+   */
+  public List<String> getBranches() {
+    return branches;
   }
 
   @Override
@@ -0,0 +1,77 @@
+/*
+ * Copyright (c) 2020 - present Cloudogu GmbH
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License as published by the Free
+ * Software Foundation, version 3.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see https://www.gnu.org/licenses/.
+ */
+
+package sonia.scm.branchwp;
+
+import com.github.legman.Subscribe;
+import sonia.scm.EagerSingleton;
+import sonia.scm.HandlerEventType;
+import sonia.scm.branchwp.service.BranchWritePermissionService;
+import sonia.scm.group.GroupEvent;
+import sonia.scm.plugin.Extension;
+import sonia.scm.repository.RepositoryEvent;
+import sonia.scm.repository.RepositoryModificationEvent;
+
+import jakarta.inject.Inject;
+
+/**
+ * Removes the in-memory state of the {@link BranchWritePermissionService} for deleted repositories and for
+ * repositories, which have been moved to another namespace, removes the meters of renamed repositories and drops
+ * cached decisions, whenever a group is modified.
+ */
+@Extension
+@EagerSingleton
+public class CacheInvalidationListener {
+
+  private final BranchWritePermissionService service;
+
+  @Inject
+  public CacheInvalidationListener(BranchWritePermissionService service) {
+    this.service = service;
+  }
+
+  @Subscribe
+  public void onEvent(RepositoryEvent event) {
+    if (event.getEventType() == HandlerEventType.DELETE || isNamespaceChanged(event)) {
+      service.invalidate(event.getItem().getId());
+    } else if (isNameChanged(event)) {
+      service.removeMeters(event.getItem().getId());
+    }
+  }
+
+  private boolean isNamespaceChanged(RepositoryEvent event) {
+    return isPostModification(event)
+      && !((RepositoryModificationEvent) event).getOldItem().getNamespace().equals(event.getItem().getNamespace());
+  }
+
+  private boolean isNameChanged(RepositoryEvent event) {
+    return isPostModification(event)
+      && !((RepositoryModificationEvent) event).getOldItem().getName().equals(event.getItem().getName());
+  }
+
+  private boolean isPostModification(RepositoryEvent event) {
+    return event instanceof RepositoryModificationEvent modification
+      && event.getEventType().isPost()
+      && modification.getOldItem() != null;
+  }
+
+  @Subscribe
+  public void onEvent(GroupEvent event) {
+    if (event.getEventType().isPost()) {
+      service.invalidateDecisions();
+    }
+  }
+}
@@ -0,0 +1,39 @@
+/*
+ * Copyright (c) 2020 - present Cloudogu GmbH
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License as published by the Free
+ * Software Foundation, version 3.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see https://www.gnu.org/licenses/.
+ */
+
+
+package sonia.scm.branchwp;
+
+import sonia.scm.BadRequestException;
+
+import java.util.regex.PatternSyntaxException;
+
+import static sonia.scm.ContextEntry.ContextBuilder.entity;
+
+/**
+ * Thrown if a branch pattern of a permission can not be compiled or exceeds the limits of the pattern type.
+ */
+public class InvalidBranchPatternException extends BadRequestException {
+
+  public InvalidBranchPatternException(String pattern, PatternSyntaxException cause) {
+    super(entity("BranchPattern", pattern).build(), "invalid branch pattern " + pattern + ": " + cause.getDescription(), cause);
+  }
+
+  @Override
+  public String getCode() {
+    return "8bSqQ3qNl1";
+  }
+}
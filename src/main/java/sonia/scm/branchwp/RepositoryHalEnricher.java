@@ -32,14 +32,23 @@ import sonia.scm.repository.api.RepositoryServiceFactory;
 
 import jakarta.inject.Inject;
 import jakarta.inject.Provider;
+import jakarta.inject.Singleton;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 @Extension
+@Singleton
 @Enrich(Repository.class)
 public class RepositoryHalEnricher implements HalEnricher {
 
   private final Provider<ScmPathInfoStore> scmPathInfoStoreProvider;
   private RepositoryServiceFactory serviceFactory;
 
+  /**
+   * Whether branches are supported depends on the type of the repository only, so we ask only once per type.
+   */
+  private final Map<String, Boolean> branchSupportByType = new ConcurrentHashMap<>();
+
   @Inject
   public RepositoryHalEnricher(Provider<ScmPathInfoStore> scmPathInfoStoreProvider, RepositoryServiceFactory serviceFactory) {
     this.scmPathInfoStoreProvider = scmPathInfoStoreProvider;
@@ -49,11 +58,17 @@ public class RepositoryHalEnricher implements HalEnricher {
   @Override
   public void enrich(HalEnricherContext context, HalAppender appender) {
     Repository repository = context.oneRequireByType(Repository.class);
-    try (RepositoryService repositoryService = serviceFactory.create(repository)) {
-      if (BranchWritePermissionService.isPermitted(repository) && repositoryService.isSupported(Command.BRANCHES)) {
-        LinkBuilder linkBuilder = new LinkBuilder(scmPathInfoStoreProvider.get().get(), BranchWritePermissionResource.class);
-        appender.appendLink("branchWpConfig", linkBuilder.method("get").parameters(repository.getNamespace(), repository.getName()).href());
-      }
+    if (BranchWritePermissionService.isPermitted(repository) && isBranchSupported(repository)) {
+      LinkBuilder linkBuilder = new LinkBuilder(scmPathInfoStoreProvider.get().get(), BranchWritePermissionResource.class);
+      appender.appendLink("branchWpConfig", linkBuilder.method("get").parameters(repository.getNamespace(), repository.getName()).href());
     }
   }
+
+  private boolean isBranchSupported(Repository repository) {
+    return branchSupportByType.computeIfAbsent(repository.getType(), type -> {
+      try (RepositoryService repositoryService = serviceFactory.create(repository)) {
+        return repositoryService.isSupported(Command.BRANCHES);
+      }
+    });
+  }
 }
@@ -30,7 +30,8 @@ import sonia.scm.repository.api.HookFeature;
 import sonia.scm.user.User;
 
 import jakarta.inject.Inject;
-import java.util.stream.Stream;
+import java.util.ArrayList;
+import java.util.List;
 
 /**
  * Receive repository events and Verify the write permission on every branch found in the event.
@@ -73,22 +74,15 @@ public class RepositoryHook {
     }
 
     log.trace("received hook for repository {}", repository.getName());
-    Stream<String> branches = getBranches(context);
+    List<String> branches = getBranches(context);
     User user = SecurityUtils.getSubject().getPrincipals().oneByType(User.class);
-    branches.forEach(
-      branch -> {
-        if (!service.isPrivileged(user, repository, branch)) {
-          throw new BranchWritePermissionException(repository, branch);
-        }
-      }
-    );
+    service.checkAll(user, repository, branches);
   }
 
-  private Stream<String> getBranches(HookContext eventContext) {
+  private List<String> getBranches(HookContext eventContext) {
     HookBranchProvider branchProvider = eventContext.getBranchProvider();
-    return Stream.concat(
-      branchProvider.getCreatedOrModified().stream(),
-      branchProvider.getDeletedOrClosed().stream()
-    );
+    List<String> branches = new ArrayList<>(branchProvider.getCreatedOrModified());
+    branches.addAll(branchProvider.getDeletedOrClosed());
+    return branches;
   }
 }
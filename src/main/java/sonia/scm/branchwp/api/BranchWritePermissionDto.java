@@ -32,5 +32,6 @@ public class BranchWritePermissionDto extends HalRepresentation {
   private String name;
   private boolean group;
   private String type;
+  private String patternType;
 
 }
@@ -16,21 +16,14 @@
 
 package sonia.scm.branchwp.api;
 
-import de.otto.edison.hal.Links;
-import org.mapstruct.AfterMapping;
 import org.mapstruct.Mapper;
-import org.mapstruct.Mapping;
-import org.mapstruct.MappingTarget;
 import sonia.scm.api.v2.resources.LinkBuilder;
 import sonia.scm.branchwp.service.BranchWritePermission;
 import sonia.scm.branchwp.service.BranchWritePermissions;
 import sonia.scm.repository.NamespaceAndName;
 
-import jakarta.ws.rs.core.Context;
 import jakarta.ws.rs.core.UriInfo;
 
-import static de.otto.edison.hal.Link.link;
-
 @Mapper
 public abstract class BranchWritePermissionMapper {
 
@@ -38,26 +31,31 @@ public abstract class BranchWritePermissionMapper {
 
   public abstract BranchWritePermission map(BranchWritePermissionDto dto);
 
-  @Mapping(target = "attributes", ignore = true)
-  public abstract BranchWritePermissionDto map(BranchWritePermission branchWritePermission);
-
   public abstract BranchWritePermissions map(BranchWritePermissionsDto dto);
 
-  @Mapping(target = "attributes", ignore = true)
-  public abstract BranchWritePermissionsDto map(BranchWritePermissions branchWritePermissions, @Context NamespaceAndName namespaceAndName);
-
-
   public BranchWritePermissionMapper using(UriInfo uriInfo) {
     this.linkBuilder = new LinkBuilder(uriInfo::getBaseUri, BranchWritePermissionResource.class);
     return this;
   }
 
-  @AfterMapping
-  void addLinks(@MappingTarget BranchWritePermissionsDto dto, @Context NamespaceAndName namespaceAndName) {
-    Links.Builder links = Links.linkingTo();
-    links.self(linkBuilder.method("get").parameters(namespaceAndName.getNamespace(), namespaceAndName.getName()).href());
-    links.single(link("update", linkBuilder.method("put").parameters(namespaceAndName.getNamespace(), namespaceAndName.getName()).href()));
-    dto.add(links.build());
+  String createSelfLink(NamespaceAndName namespaceAndName) {
+    return linkBuilder.method("get").parameters(namespaceAndName.getNamespace(), namespaceAndName.getName()).href();
+  }
+
+  String createUpdateLink(NamespaceAndName namespaceAndName) {
+    return linkBuilder.method("put").parameters(namespaceAndName.getNamespace(), namespaceAndName.getName()).href();
+  }
+
+  String createInheritedLink(NamespaceAndName namespaceAndName) {
+    return linkBuilder.method("getInherited").parameters(namespaceAndName.getNamespace(), namespaceAndName.getName()).href();
+  }
+
+  String createGlobalLink() {
+    return linkBuilder.method("getGlobal").parameters().href();
+  }
+
+  String createNamespaceLink(String namespace) {
+    return linkBuilder.method("getNamespace").parameters(namespace).href();
   }
 
 }
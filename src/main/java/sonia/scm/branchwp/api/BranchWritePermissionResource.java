@@ -16,27 +16,60 @@
 
 package sonia.scm.branchwp.api;
 
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.google.common.base.Strings;
 import io.swagger.v3.oas.annotations.OpenAPIDefinition;
 import io.swagger.v3.oas.annotations.Operation;
+import io.swagger.v3.oas.annotations.Parameter;
 import io.swagger.v3.oas.annotations.media.Content;
 import io.swagger.v3.oas.annotations.media.Schema;
 import io.swagger.v3.oas.annotations.responses.ApiResponse;
 import io.swagger.v3.oas.annotations.tags.Tag;
+import org.apache.shiro.SecurityUtils;
+import org.apache.shiro.subject.Subject;
+import sonia.scm.ConcurrentModificationException;
 import sonia.scm.api.v2.resources.ErrorDto;
 import sonia.scm.branchwp.service.BranchWritePermissionService;
+import sonia.scm.branchwp.service.BranchWritePermissions;
+import sonia.scm.repository.Branch;
 import sonia.scm.repository.NamespaceAndName;
+import sonia.scm.repository.Repository;
+import sonia.scm.repository.api.RepositoryService;
+import sonia.scm.repository.api.RepositoryServiceFactory;
+import sonia.scm.user.User;
+import sonia.scm.user.UserManager;
 import sonia.scm.web.VndMediaType;
 
 import jakarta.inject.Inject;
 import jakarta.ws.rs.Consumes;
+import jakarta.ws.rs.DELETE;
+import jakarta.ws.rs.DefaultValue;
 import jakarta.ws.rs.GET;
+import jakarta.ws.rs.HeaderParam;
+import jakarta.ws.rs.POST;
 import jakarta.ws.rs.PUT;
 import jakarta.ws.rs.Path;
 import jakarta.ws.rs.PathParam;
 import jakarta.ws.rs.Produces;
+import jakarta.ws.rs.QueryParam;
+import jakarta.ws.rs.WebApplicationException;
 import jakarta.ws.rs.core.Context;
+import jakarta.ws.rs.core.EntityTag;
+import jakarta.ws.rs.core.HttpHeaders;
 import jakarta.ws.rs.core.MediaType;
+import jakarta.ws.rs.core.Request;
+import jakarta.ws.rs.core.Response;
+import jakarta.ws.rs.core.StreamingOutput;
 import jakarta.ws.rs.core.UriInfo;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
+
+import static sonia.scm.ContextEntry.ContextBuilder.entity;
+import static sonia.scm.NotFoundException.notFound;
 
 @OpenAPIDefinition(tags = {
   @Tag(name = "BranchWP Plugin", description = "BranchWP plugin provided endpoints")
@@ -47,11 +80,15 @@ public class BranchWritePermissionResource {
 
   private BranchWritePermissionService service;
   private BranchWritePermissionMapper mapper;
+  private RepositoryServiceFactory repositoryServiceFactory;
+  private UserManager userManager;
 
   @Inject
-  public BranchWritePermissionResource(BranchWritePermissionService service, BranchWritePermissionMapper mapper) {
+  public BranchWritePermissionResource(BranchWritePermissionService service, BranchWritePermissionMapper mapper, RepositoryServiceFactory repositoryServiceFactory, UserManager userManager) {
     this.service = service;
     this.mapper = mapper;
+    this.repositoryServiceFactory = repositoryServiceFactory;
+    this.userManager = userManager;
   }
 
   @GET
@@ -59,7 +96,9 @@ public class BranchWritePermissionResource {
   @Produces(MediaType.APPLICATION_JSON)
   @Operation(
     summary = "Get branchwp configuration",
-    description = "Returns the branchwp configuration.",
+    description = "Returns the branchwp configuration. The rules are streamed and can be filtered and paged, " +
+      "in this case the number of matching rules is returned as total. The version of the configuration is " +
+      "returned as ETag, a request with an If-None-Match header of the current version is answered with 304.",
     tags = "BranchWP Plugin",
     operationId = "branchwp_get_config"
   )
@@ -71,6 +110,7 @@ public class BranchWritePermissionResource {
       schema = @Schema(implementation = BranchWritePermissionsDto.class)
     )
   )
+  @ApiResponse(responseCode = "304", description = "not modified / the configuration still has the version of the If-None-Match header")
   @ApiResponse(responseCode = "401", description = "not authenticated / invalid credentials")
   @ApiResponse(responseCode = "403", description = "not authorized /  the current user does not have the \"branchwp\" privilege")
   @ApiResponse(
@@ -81,8 +121,30 @@ public class BranchWritePermissionResource {
       schema = @Schema(implementation = ErrorDto.class)
     )
   )
-  public BranchWritePermissionsDto get(@Context UriInfo uriInfo, @PathParam("namespace") String namespace, @PathParam("name") String name) {
-    return mapper.using(uriInfo).map(service.getPermissions(namespace, name), new NamespaceAndName(namespace, name));
+  public Response get(@Context UriInfo uriInfo,
+                      @Context Request request,
+                      @PathParam("namespace") String namespace,
+                      @PathParam("name") String name,
+                      @Parameter(description = "only rules whose branch or name contains the filter (case insensitive)") @QueryParam("filter") String filter,
+                      @Parameter(description = "number of matching rules to skip") @QueryParam("offset") @DefaultValue("0") int offset,
+                      @Parameter(description = "maximum number of rules to return") @QueryParam("limit") Integer limit) {
+    Response.ResponseBuilder notModified = request.evaluatePreconditions(new EntityTag(service.getVersion(namespace, name)));
+    if (notModified != null) {
+      return notModified.build();
+    }
+    BranchWritePermissions permissions = service.getPermissions(namespace, name);
+    NamespaceAndName namespaceAndName = new NamespaceAndName(namespace, name);
+    BranchWritePermissionMapper links = mapper.using(uriInfo);
+    BranchWritePermissionsOutput output = new BranchWritePermissionsOutput(
+      permissions,
+      links.createSelfLink(namespaceAndName),
+      links.createUpdateLink(namespaceAndName),
+      links.createInheritedLink(namespaceAndName),
+      filter,
+      offset,
+      limit
+    );
+    return Response.ok(output).tag(BranchWritePermissionService.getVersion(permissions)).build();
   }
 
 
@@ -91,13 +153,189 @@ public class BranchWritePermissionResource {
   @Consumes(MediaType.APPLICATION_JSON)
   @Operation(
     summary = "Update branchwp configuration",
-    description = "Modifies the branchwp configuration.",
+    description = "Modifies the branchwp configuration. With an If-Match header the configuration is only modified, " +
+      "if it still has the given version. Rules with the pattern type REGEX are compiled and rejected, if the regular " +
+      "expression is invalid or exceeds the limits.",
     tags = "BranchWP Plugin",
     operationId = "branchwp_put_config"
   )
+  @ApiResponse(responseCode = "204", description = "update success, the new version of the configuration is returned as ETag")
+  @ApiResponse(
+    responseCode = "400",
+    description = "bad request / a regular expression is invalid or exceeds the limits",
+    content = @Content(
+      mediaType = VndMediaType.ERROR_TYPE,
+      schema = @Schema(implementation = ErrorDto.class)
+    )
+  )
+  @ApiResponse(responseCode = "401", description = "not authenticated / invalid credentials")
+  @ApiResponse(responseCode = "403", description = "not authorized /  the current user does not have the \"branchwp\" privilege")
+  @ApiResponse(responseCode = "412", description = "precondition failed / the configuration has been modified since the version of the If-Match header or the header contains no strong entity tag")
+  @ApiResponse(
+    responseCode = "500",
+    description = "internal server error",
+    content = @Content(
+      mediaType = VndMediaType.ERROR_TYPE,
+      schema = @Schema(implementation = ErrorDto.class)
+    )
+  )
+  public Response put(@Context UriInfo uriInfo,
+                      @PathParam("namespace") String namespace,
+                      @PathParam("name") String name,
+                      @HeaderParam(HttpHeaders.IF_MATCH) String ifMatch,
+                      BranchWritePermissionsDto permissions) {
+    return modified(() -> service.setPermissions(namespace, name, expectedVersion(namespace, name, ifMatch), mapper.using(uriInfo).map(permissions)));
+  }
+
+  @GET
+  @Path("/")
+  @Produces(MediaType.APPLICATION_JSON)
+  @Operation(
+    summary = "Get global branchwp configuration",
+    description = "Returns the global branchwp configuration, which is inherited by all repositories.",
+    tags = "BranchWP Plugin",
+    operationId = "branchwp_get_global_config"
+  )
+  @ApiResponse(
+    responseCode = "200",
+    description = "success",
+    content = @Content(
+      mediaType = MediaType.APPLICATION_JSON,
+      schema = @Schema(implementation = BranchWritePermissionsDto.class)
+    )
+  )
+  @ApiResponse(responseCode = "401", description = "not authenticated / invalid credentials")
+  @ApiResponse(responseCode = "403", description = "not authorized /  the current user does not have the \"configuration:read:branchwp\" privilege")
+  @ApiResponse(
+    responseCode = "500",
+    description = "internal server error",
+    content = @Content(
+      mediaType = VndMediaType.ERROR_TYPE,
+      schema = @Schema(implementation = ErrorDto.class)
+    )
+  )
+  public StreamingOutput getGlobal(@Context UriInfo uriInfo) {
+    String link = mapper.using(uriInfo).createGlobalLink();
+    return new BranchWritePermissionsOutput(service.getGlobalPermissions(), link, link, null, null, 0, null);
+  }
+
+  @PUT
+  @Path("/")
+  @Consumes(MediaType.APPLICATION_JSON)
+  @Operation(
+    summary = "Update global branchwp configuration",
+    description = "Modifies the global branchwp configuration, which is inherited by all repositories.",
+    tags = "BranchWP Plugin",
+    operationId = "branchwp_put_global_config"
+  )
   @ApiResponse(responseCode = "204", description = "update success")
+  @ApiResponse(
+    responseCode = "400",
+    description = "bad request / a regular expression is invalid or exceeds the limits",
+    content = @Content(
+      mediaType = VndMediaType.ERROR_TYPE,
+      schema = @Schema(implementation = ErrorDto.class)
+    )
+  )
+  @ApiResponse(responseCode = "401", description = "not authenticated / invalid credentials")
+  @ApiResponse(responseCode = "403", description = "not authorized /  the current user does not have the \"configuration:write:branchwp\" privilege")
+  @ApiResponse(
+    responseCode = "500",
+    description = "internal server error",
+    content = @Content(
+      mediaType = VndMediaType.ERROR_TYPE,
+      schema = @Schema(implementation = ErrorDto.class)
+    )
+  )
+  public void putGlobal(BranchWritePermissionsDto permissions) {
+    service.setGlobalPermissions(mapper.map(permissions));
+  }
+
+  @GET
+  @Path("/{namespace}")
+  @Produces(MediaType.APPLICATION_JSON)
+  @Operation(
+    summary = "Get namespace branchwp configuration",
+    description = "Returns the branchwp configuration of the namespace, which is inherited by all repositories of the namespace.",
+    tags = "BranchWP Plugin",
+    operationId = "branchwp_get_namespace_config"
+  )
+  @ApiResponse(
+    responseCode = "200",
+    description = "success",
+    content = @Content(
+      mediaType = MediaType.APPLICATION_JSON,
+      schema = @Schema(implementation = BranchWritePermissionsDto.class)
+    )
+  )
+  @ApiResponse(responseCode = "401", description = "not authenticated / invalid credentials")
+  @ApiResponse(responseCode = "403", description = "not authorized /  the current user does not have the \"configuration:read:branchwp\" privilege")
+  @ApiResponse(
+    responseCode = "500",
+    description = "internal server error",
+    content = @Content(
+      mediaType = VndMediaType.ERROR_TYPE,
+      schema = @Schema(implementation = ErrorDto.class)
+    )
+  )
+  public StreamingOutput getNamespace(@Context UriInfo uriInfo, @PathParam("namespace") String namespace) {
+    String link = mapper.using(uriInfo).createNamespaceLink(namespace);
+    return new BranchWritePermissionsOutput(service.getNamespacePermissions(namespace), link, link, null, null, 0, null);
+  }
+
+  @PUT
+  @Path("/{namespace}")
+  @Consumes(MediaType.APPLICATION_JSON)
+  @Operation(
+    summary = "Update namespace branchwp configuration",
+    description = "Modifies the branchwp configuration of the namespace, which is inherited by all repositories of the namespace.",
+    tags = "BranchWP Plugin",
+    operationId = "branchwp_put_namespace_config"
+  )
+  @ApiResponse(responseCode = "204", description = "update success")
+  @ApiResponse(
+    responseCode = "400",
+    description = "bad request / a regular expression is invalid or exceeds the limits",
+    content = @Content(
+      mediaType = VndMediaType.ERROR_TYPE,
+      schema = @Schema(implementation = ErrorDto.class)
+    )
+  )
+  @ApiResponse(responseCode = "401", description = "not authenticated / invalid credentials")
+  @ApiResponse(responseCode = "403", description = "not authorized /  the current user does not have the \"configuration:write:branchwp\" privilege")
+  @ApiResponse(
+    responseCode = "500",
+    description = "internal server error",
+    content = @Content(
+      mediaType = VndMediaType.ERROR_TYPE,
+      schema = @Schema(implementation = ErrorDto.class)
+    )
+  )
+  public void putNamespace(@PathParam("namespace") String namespace, BranchWritePermissionsDto permissions) {
+    service.setNamespacePermissions(namespace, mapper.map(permissions));
+  }
+
+  @POST
+  @Path("/{namespace}/{name}/permissions")
+  @Consumes(MediaType.APPLICATION_JSON)
+  @Operation(
+    summary = "Add branch permission",
+    description = "Adds a single rule after all other rules of the branchwp configuration.",
+    tags = "BranchWP Plugin",
+    operationId = "branchwp_add_permission"
+  )
+  @ApiResponse(responseCode = "204", description = "update success, the new version of the configuration is returned as ETag")
+  @ApiResponse(
+    responseCode = "400",
+    description = "bad request / a regular expression is invalid or exceeds the limits",
+    content = @Content(
+      mediaType = VndMediaType.ERROR_TYPE,
+      schema = @Schema(implementation = ErrorDto.class)
+    )
+  )
   @ApiResponse(responseCode = "401", description = "not authenticated / invalid credentials")
   @ApiResponse(responseCode = "403", description = "not authorized /  the current user does not have the \"branchwp\" privilege")
+  @ApiResponse(responseCode = "412", description = "precondition failed / the configuration has been modified since the version of the If-Match header or the header contains no strong entity tag")
   @ApiResponse(
     responseCode = "500",
     description = "internal server error",
@@ -106,8 +344,246 @@ public class BranchWritePermissionResource {
       schema = @Schema(implementation = ErrorDto.class)
     )
   )
-  public void put(@Context UriInfo uriInfo, @PathParam("namespace") String namespace, @PathParam("name") String name, BranchWritePermissionsDto permissions) {
-    service.setPermissions(namespace, name, mapper.using(uriInfo).map(permissions));
+  public Response addPermission(@PathParam("namespace") String namespace,
+                                @PathParam("name") String name,
+                                @HeaderParam(HttpHeaders.IF_MATCH) String ifMatch,
+                                BranchWritePermissionDto permission) {
+    return modified(() -> service.addPermission(namespace, name, expectedVersion(namespace, name, ifMatch), mapper.map(permission)));
   }
 
+  @PUT
+  @Path("/{namespace}/{name}/permissions/{index}")
+  @Consumes(MediaType.APPLICATION_JSON)
+  @Operation(
+    summary = "Replace branch permission",
+    description = "Replaces the rule at the given index of the branchwp configuration.",
+    tags = "BranchWP Plugin",
+    operationId = "branchwp_replace_permission"
+  )
+  @ApiResponse(responseCode = "204", description = "update success, the new version of the configuration is returned as ETag")
+  @ApiResponse(
+    responseCode = "400",
+    description = "bad request / a regular expression is invalid or exceeds the limits",
+    content = @Content(
+      mediaType = VndMediaType.ERROR_TYPE,
+      schema = @Schema(implementation = ErrorDto.class)
+    )
+  )
+  @ApiResponse(responseCode = "401", description = "not authenticated / invalid credentials")
+  @ApiResponse(responseCode = "403", description = "not authorized /  the current user does not have the \"branchwp\" privilege")
+  @ApiResponse(responseCode = "404", description = "not found / no rule with the given index available")
+  @ApiResponse(responseCode = "412", description = "precondition failed / the configuration has been modified since the version of the If-Match header or the header contains no strong entity tag")
+  @ApiResponse(
+    responseCode = "500",
+    description = "internal server error",
+    content = @Content(
+      mediaType = VndMediaType.ERROR_TYPE,
+      schema = @Schema(implementation = ErrorDto.class)
+    )
+  )
+  public Response replacePermission(@PathParam("namespace") String namespace,
+                                    @PathParam("name") String name,
+                                    @PathParam("index") int index,
+                                    @HeaderParam(HttpHeaders.IF_MATCH) String ifMatch,
+                                    BranchWritePermissionDto permission) {
+    return modified(() -> service.replacePermission(namespace, name, expectedVersion(namespace, name, ifMatch), index, mapper.map(permission)));
+  }
+
+  @DELETE
+  @Path("/{namespace}/{name}/permissions/{index}")
+  @Operation(
+    summary = "Remove branch permission",
+    description = "Removes the rule at the given index of the branchwp configuration.",
+    tags = "BranchWP Plugin",
+    operationId = "branchwp_remove_permission"
+  )
+  @ApiResponse(responseCode = "204", description = "update success, the new version of the configuration is returned as ETag")
+  @ApiResponse(responseCode = "401", description = "not authenticated / invalid credentials")
+  @ApiResponse(responseCode = "403", description = "not authorized /  the current user does not have the \"branchwp\" privilege")
+  @ApiResponse(responseCode = "404", description = "not found / no rule with the given index available")
+  @ApiResponse(responseCode = "412", description = "precondition failed / the configuration has been modified since the version of the If-Match header or the header contains no strong entity tag")
+  @ApiResponse(
+    responseCode = "500",
+    description = "internal server error",
+    content = @Content(
+      mediaType = VndMediaType.ERROR_TYPE,
+      schema = @Schema(implementation = ErrorDto.class)
+    )
+  )
+  public Response removePermission(@PathParam("namespace") String namespace,
+                                   @PathParam("name") String name,
+                                   @PathParam("index") int index,
+                                   @HeaderParam(HttpHeaders.IF_MATCH) String ifMatch) {
+    return modified(() -> service.removePermission(namespace, name, expectedVersion(namespace, name, ifMatch), index));
+  }
+
+  /**
+   * Returns the new version of a modification as ETag. The service detects a version, which does not match the If-Match
+   * header, while the configuration is locked; like every other failed If-Match precondition it fails with 412.
+   */
+  private static Response modified(Supplier<String> modification) {
+    try {
+      return Response.noContent().tag(modification.get()).build();
+    } catch (ConcurrentModificationException e) {
+      throw preconditionFailed();
+    }
+  }
+
+  private static WebApplicationException preconditionFailed() {
+    return new WebApplicationException(Response.status(Response.Status.PRECONDITION_FAILED).build());
+  }
+
+  /**
+   * Returns the version of the If-Match header or {@code null}, if any version is accepted. The header may contain a
+   * list of entity tags. If-Match uses the strong comparison of RFC 7232, so weak tags never match and a header
+   * without strong tags fails with 412. Of several tags the current version is chosen, if it is listed. The version is
+   * checked again by the service, while the configuration is locked.
+   */
+  private String expectedVersion(String namespace, String name, String ifMatch) {
+    if (Strings.isNullOrEmpty(ifMatch) || ifMatch.trim().equals("*")) {
+      return null;
+    }
+    List<String> versions = strongEntityTags(ifMatch);
+    if (versions.isEmpty()) {
+      throw preconditionFailed();
+    }
+    if (versions.size() == 1) {
+      return versions.get(0);
+    }
+    String current = service.getVersion(namespace, name);
+    return versions.contains(current) ? current : versions.get(0);
+  }
+
+  /**
+   * Returns the values of the strong entity tags of a comma separated list. Weak and malformed tags are skipped.
+   */
+  private static List<String> strongEntityTags(String header) {
+    List<String> tags = new ArrayList<>();
+    int i = 0;
+    while (i < header.length()) {
+      char c = header.charAt(i);
+      if (c == ',' || Character.isWhitespace(c)) {
+        i++;
+        continue;
+      }
+      boolean weak = header.startsWith("W/", i);
+      int start = weak ? i + 2 : i;
+      int end = start < header.length() && header.charAt(start) == '"' ? header.indexOf('"', start + 1) : -1;
+      if (end < 0) {
+        // malformed, skip to the next tag
+        int comma = header.indexOf(',', i);
+        i = comma < 0 ? header.length() : comma + 1;
+        continue;
+      }
+      if (!weak) {
+        tags.add(header.substring(start + 1, end));
+      }
+      i = end + 1;
+    }
+    return tags;
+  }
+
+  @GET
+  @Path("/{namespace}/{name}/inherited")
+  @Produces(MediaType.APPLICATION_JSON)
+  @Operation(
+    summary = "Get state of inherited branchwp configurations",
+    description = "Returns whether the global configuration and the configuration of the namespace, which are " +
+      "inherited by the repository, are enabled.",
+    tags = "BranchWP Plugin",
+    operationId = "branchwp_get_inherited_config"
+  )
+  @ApiResponse(responseCode = "200", description = "success")
+  @ApiResponse(responseCode = "401", description = "not authenticated / invalid credentials")
+  @ApiResponse(responseCode = "403", description = "not authorized /  the current user does not have the \"branchwp\" privilege")
+  @ApiResponse(
+    responseCode = "500",
+    description = "internal server error",
+    content = @Content(
+      mediaType = VndMediaType.ERROR_TYPE,
+      schema = @Schema(implementation = ErrorDto.class)
+    )
+  )
+  public StreamingOutput getInherited(@PathParam("namespace") String namespace, @PathParam("name") String name) {
+    BranchWritePermissionService.InheritedPermissions inherited = service.getInheritedPermissions(namespace, name);
+    return output -> {
+      try (JsonGenerator generator = BranchWritePermissionsOutput.JSON_FACTORY.createGenerator(output)) {
+        generator.writeStartObject();
+        generator.writeBooleanField("global", inherited.global());
+        generator.writeBooleanField("namespace", inherited.namespace());
+        generator.writeEndObject();
+      }
+    };
+  }
+
+  @GET
+  @Path("/{namespace}/{name}/writable")
+  @Produces(MediaType.APPLICATION_JSON)
+  @Operation(
+    summary = "Get writable branches",
+    description = "Returns for every branch of the repository, whether the user is permitted to write it. " +
+      "Without user the branches are checked for the current user.",
+    tags = "BranchWP Plugin",
+    operationId = "branchwp_get_writable_branches"
+  )
+  @ApiResponse(responseCode = "200", description = "success")
+  @ApiResponse(responseCode = "401", description = "not authenticated / invalid credentials")
+  @ApiResponse(responseCode = "403", description = "not authorized /  the current user does not have the \"branchwp\" privilege to check other users")
+  @ApiResponse(
+    responseCode = "404",
+    description = "not found / no repository or user with the specified name available",
+    content = @Content(
+      mediaType = VndMediaType.ERROR_TYPE,
+      schema = @Schema(implementation = ErrorDto.class)
+    )
+  )
+  @ApiResponse(
+    responseCode = "500",
+    description = "internal server error",
+    content = @Content(
+      mediaType = VndMediaType.ERROR_TYPE,
+      schema = @Schema(implementation = ErrorDto.class)
+    )
+  )
+  public StreamingOutput getWritableBranches(@PathParam("namespace") String namespace,
+                                             @PathParam("name") String name,
+                                             @Parameter(description = "name of the user, defaults to the current user") @QueryParam("user") String username) throws IOException {
+    try (RepositoryService repositoryService = repositoryServiceFactory.create(new NamespaceAndName(namespace, name))) {
+      Repository repository = repositoryService.getRepository();
+      User user = getUser(repository, username);
+      Predicate<String> check = service.createPrivilegeCheck(user, repository);
+      List<Branch> branches = repositoryService.getBranchesCommand().getBranches().getBranches();
+      return output -> writeWritableBranches(output, user, branches, check);
+    }
+  }
+
+  private User getUser(Repository repository, String username) {
+    Subject subject = SecurityUtils.getSubject();
+    if (Strings.isNullOrEmpty(username) || username.equals(subject.getPrincipal())) {
+      return subject.getPrincipals().oneByType(User.class);
+    }
+    service.checkPermission(repository);
+    User user = userManager.get(username);
+    if (user == null) {
+      throw notFound(entity(User.class, username).in(repository.getNamespaceAndName()));
+    }
+    return user;
+  }
+
+  /**
+   * The result is written branch by branch, so that even for repositories with a huge number of branches no
+   * intermediate objects are kept in memory.
+   */
+  private void writeWritableBranches(OutputStream output, User user, List<Branch> branches, Predicate<String> check) throws IOException {
+    try (JsonGenerator generator = BranchWritePermissionsOutput.JSON_FACTORY.createGenerator(output)) {
+      generator.writeStartObject();
+      generator.writeStringField("user", user.getName());
+      generator.writeObjectFieldStart("branches");
+      for (Branch branch : branches) {
+        generator.writeBooleanField(branch.getName(), check.test(branch.getName()));
+      }
+      generator.writeEndObject();
+      generator.writeEndObject();
+    }
+  }
 }
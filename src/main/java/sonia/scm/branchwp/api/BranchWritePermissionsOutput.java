@@ -0,0 +1,121 @@
+/*
+ * Copyright (c) 2020 - present Cloudogu GmbH
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License as published by the Free
+ * Software Foundation, version 3.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see https://www.gnu.org/licenses/.
+ */
+package sonia.scm.branchwp.api;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.google.common.base.Strings;
+import sonia.scm.branchwp.service.BranchWritePermission;
+import sonia.scm.branchwp.service.BranchWritePermissions;
+
+import jakarta.ws.rs.core.StreamingOutput;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Locale;
+
+/**
+ * Writes the branch write permissions straight from the stored model in the format of the
+ * {@link BranchWritePermissionsDto}, without creating a dto for every rule. The rules can be filtered and paged, in
+ * this case the number of matching rules is written as {@code total}. The permissions of a repository link to the
+ * state of the inherited permissions.
+ */
+class BranchWritePermissionsOutput implements StreamingOutput {
+
+  static final JsonFactory JSON_FACTORY = new JsonFactory().disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+
+  private final BranchWritePermissions permissions;
+  private final String selfLink;
+  private final String updateLink;
+  private final String inheritedLink;
+  private final String filter;
+  private final int offset;
+  private final Integer limit;
+
+  BranchWritePermissionsOutput(BranchWritePermissions permissions, String selfLink, String updateLink, String inheritedLink, String filter, int offset, Integer limit) {
+    this.permissions = permissions;
+    this.selfLink = selfLink;
+    this.updateLink = updateLink;
+    this.inheritedLink = inheritedLink;
+    this.filter = Strings.isNullOrEmpty(filter) ? null : filter.toLowerCase(Locale.ENGLISH);
+    this.offset = Math.max(0, offset);
+    this.limit = limit == null ? null : Math.max(0, limit);
+  }
+
+  @Override
+  public void write(OutputStream output) throws IOException {
+    try (JsonGenerator generator = JSON_FACTORY.createGenerator(output)) {
+      generator.writeStartObject();
+      generator.writeArrayFieldStart("permissions");
+      int total = 0;
+      for (BranchWritePermission permission : permissions.getPermissions()) {
+        if (!matches(permission)) {
+          continue;
+        }
+        if (total >= offset && (limit == null || total < offset + limit)) {
+          write(generator, permission);
+        }
+        total++;
+      }
+      generator.writeEndArray();
+      generator.writeBooleanField("enabled", permissions.isEnabled());
+      if (isPaged()) {
+        generator.writeNumberField("total", total);
+      }
+      generator.writeObjectFieldStart("_links");
+      writeLink(generator, "self", selfLink);
+      writeLink(generator, "update", updateLink);
+      if (inheritedLink != null) {
+        writeLink(generator, "inherited", inheritedLink);
+      }
+      generator.writeEndObject();
+      generator.writeEndObject();
+    }
+  }
+
+  private boolean isPaged() {
+    return filter != null || offset > 0 || limit != null;
+  }
+
+  private boolean matches(BranchWritePermission permission) {
+    return filter == null || contains(permission.getBranch()) || contains(permission.getName());
+  }
+
+  private boolean contains(String value) {
+    return value != null && value.toLowerCase(Locale.ENGLISH).contains(filter);
+  }
+
+  private void write(JsonGenerator generator, BranchWritePermission permission) throws IOException {
+    generator.writeStartObject();
+    writeNullable(generator, "branch", permission.getBranch());
+    writeNullable(generator, "name", permission.getName());
+    generator.writeBooleanField("group", permission.isGroup());
+    writeNullable(generator, "type", permission.getType() == null ? null : permission.getType().name());
+    writeNullable(generator, "patternType", permission.getPatternType() == null ? null : permission.getPatternType().name());
+    generator.writeEndObject();
+  }
+
+  private void writeNullable(JsonGenerator generator, String field, String value) throws IOException {
+    if (value != null) {
+      generator.writeStringField(field, value);
+    }
+  }
+
+  private void writeLink(JsonGenerator generator, String rel, String href) throws IOException {
+    generator.writeObjectFieldStart(rel);
+    generator.writeStringField("href", href);
+    generator.writeEndObject();
+  }
+}
@@ -0,0 +1,450 @@
+/*
+ * Copyright (c) 2020 - present Cloudogu GmbH
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License as published by the Free
+ * Software Foundation, version 3.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see https://www.gnu.org/licenses/.
+ */
+
+
+package sonia.scm.branchwp.service;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Automaton over many simple branch patterns, which only consist of literal characters and the wildcards {@code *}
+ * and {@code ?}. One scan of the branch returns all matching patterns at once, so that the cost depends on the length
+ * of the branch and not on the number of patterns. The patterns are split, so that every part stays small:
+ * <ul>
+ *   <li>patterns without wildcards are looked up by the branch in a hash map,</li>
+ *   <li>patterns with a literal first path segment, like {@code team-a/*}, are grouped by this segment and only the
+ *   rest of the pattern is matched by a deterministic automaton of the group,</li>
+ *   <li>all other patterns, like {@code *-hotfix}, share one deterministic automaton.</li>
+ * </ul>
+ * The states of the deterministic automata are not built up front, because the subset construction can grow
+ * exponentially with the number of patterns. Instead a state and its transition for a character class are created,
+ * when a branch reaches them, and are kept for the next branches. Every automaton keeps at most {@link #MAX_STATES}
+ * states, if a branch needs more, the states are dropped and built again on demand. Building therefore only costs a
+ * pass over the patterns.
+ * <p>
+ * The patterns have the same semantics as {@link BranchMatcher}. Branches with line terminators or surrogate pairs,
+ * which are treated differently by the regular expressions of {@link sonia.scm.util.GlobUtil}, are matched with a
+ * {@link BranchMatcher} per pattern.
+ */
+final class BranchAutomaton {
+
+  static final int MAX_STATES = 4096;
+
+  private static final String UNSUPPORTED_CHARACTERS = "\\{}[]";
+  private static final int STAR = -1;
+  private static final int ANY = -2;
+  private static final int END = -3;
+  private static final char NEXT_LINE = 0x85;
+  private static final char LINE_SEPARATOR = 0x2028;
+  private static final char PARAGRAPH_SEPARATOR = 0x2029;
+  private static final BitSet NONE = new BitSet();
+  private static final State DEAD = new State(new int[0], NONE, 0);
+
+  static final BranchAutomaton EMPTY = new Builder().build();
+
+  private final Map<String, BitSet> literals;
+  private final Map<String, Dfa> segments;
+  private final Dfa others;
+  private final BranchMatcher[] matchers;
+
+  private BranchAutomaton(Map<String, BitSet> literals, Map<String, Dfa> segments, Dfa others, BranchMatcher[] matchers) {
+    this.literals = literals;
+    this.segments = segments;
+    this.others = others;
+    this.matchers = matchers;
+  }
+
+  static Builder builder() {
+    return new Builder();
+  }
+
+  /**
+   * Returns {@code true} if the pattern can be added to an automaton.
+   */
+  static boolean supports(String pattern) {
+    String trimmed = pattern.trim();
+    for (int i = 0; i < trimmed.length(); i++) {
+      if (UNSUPPORTED_CHARACTERS.indexOf(trimmed.charAt(i)) >= 0) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  boolean isEmpty() {
+    return matchers.length == 0;
+  }
+
+  /**
+   * Returns the number of states of all deterministic automata, which are currently kept.
+   */
+  int getStateCount() {
+    int count = others.getStateCount();
+    for (Dfa dfa : segments.values()) {
+      count += dfa.getStateCount();
+    }
+    return count;
+  }
+
+  /**
+   * Returns the ids of all patterns, which match the branch. The returned set must not be modified.
+   */
+  BitSet match(String branch) {
+    if (matchers.length == 0) {
+      return NONE;
+    }
+    for (int i = 0; i < branch.length(); i++) {
+      if (isSpecial(branch.charAt(i))) {
+        return matchEach(branch);
+      }
+    }
+    BitSet matched = literals.getOrDefault(branch, NONE);
+    int slash = branch.indexOf('/');
+    if (slash >= 0 && !segments.isEmpty()) {
+      Dfa dfa = segments.get(branch.substring(0, slash));
+      if (dfa != null) {
+        matched = union(matched, dfa.match(branch, slash + 1));
+      }
+    }
+    return union(matched, others.match(branch, 0));
+  }
+
+  private static BitSet union(BitSet a, BitSet b) {
+    if (b.isEmpty()) {
+      return a;
+    }
+    if (a.isEmpty()) {
+      return b;
+    }
+    BitSet union = (BitSet) a.clone();
+    union.or(b);
+    return union;
+  }
+
+  private BitSet matchEach(String branch) {
+    BitSet matching = new BitSet(matchers.length);
+    for (int id = 0; id < matchers.length; id++) {
+      if (matchers[id].matches(branch)) {
+        matching.set(id);
+      }
+    }
+    return matching;
+  }
+
+  private static boolean isSpecial(char c) {
+    return Character.isSurrogate(c) || c == '\n' || c == '\r' || c == NEXT_LINE || c == LINE_SEPARATOR || c == PARAGRAPH_SEPARATOR;
+  }
+
+  /**
+   * Deterministic automaton over the patterns of one part. The states are built lazily, see {@link BranchAutomaton}.
+   */
+  private static final class Dfa {
+
+    private final int[] asciiClasses;
+    private final Map<Character, Integer> otherClasses;
+    private final int classCount;
+    private final int[] token;
+    private final int[] tokenClass;
+    private final int[] patternOfPosition;
+    private final int[] startPositions;
+
+    private volatile StateCache cache;
+
+    private Dfa(List<String> patterns, List<Integer> ids) {
+      // the tokens of all patterns are concatenated, every pattern ends with END,
+      // so that a position is the index of the next token of a pattern
+      int length = 0;
+      for (String pattern : patterns) {
+        length += pattern.length() + 1;
+      }
+      token = new int[length];
+      patternOfPosition = new int[length];
+      startPositions = new int[patterns.size()];
+      asciiClasses = new int[128];
+      Map<Character, Integer> others = new HashMap<>();
+      int classes = 1;
+      int position = 0;
+      for (int index = 0; index < patterns.size(); index++) {
+        String pattern = patterns.get(index);
+        int id = ids.get(index);
+        startPositions[index] = position;
+        for (int i = 0; i < pattern.length(); i++) {
+          char c = pattern.charAt(i);
+          if (c == '*') {
+            token[position] = STAR;
+          } else if (c == '?') {
+            token[position] = ANY;
+          } else {
+            token[position] = c;
+            if (c < asciiClasses.length) {
+              if (asciiClasses[c] == 0) {
+                asciiClasses[c] = classes++;
+              }
+            } else if (!others.containsKey(c)) {
+              others.put(c, classes++);
+            }
+          }
+          patternOfPosition[position++] = id;
+        }
+        token[position] = END;
+        patternOfPosition[position++] = id;
+      }
+      tokenClass = new int[length];
+      for (int i = 0; i < length; i++) {
+        if (token[i] >= 0) {
+          char c = (char) token[i];
+          tokenClass[i] = c < asciiClasses.length ? asciiClasses[c] : others.get(c);
+        }
+      }
+      otherClasses = Map.copyOf(others);
+      classCount = classes;
+    }
+
+    private int getStateCount() {
+      StateCache current = cache;
+      return current == null ? 0 : current.states.size();
+    }
+
+    private BitSet match(String branch, int offset) {
+      if (startPositions.length == 0) {
+        return NONE;
+      }
+      StateCache current = cache;
+      if (current == null) {
+        // a concurrently created cache is just replaced
+        current = new StateCache();
+        cache = current;
+      }
+      State state = current.start;
+      for (int i = offset; i < branch.length() && state != DEAD; i++) {
+        state = next(current, state, classOf(branch.charAt(i)));
+      }
+      return state.accepting;
+    }
+
+    /**
+     * Returns the transition of the state, which is created on the first use. The transitions are written without
+     * synchronization: states are immutable apart from their transitions and a transition, which is not yet visible
+     * to another thread, is just computed again.
+     */
+    private State next(StateCache current, State state, int characterClass) {
+      State next = state.transitions[characterClass];
+      if (next == null) {
+        next = current.get(step(state.positions, characterClass));
+        state.transitions[characterClass] = next;
+      }
+      return next;
+    }
+
+    private int[] step(int[] positions, int characterClass) {
+      int[] next = new int[positions.length];
+      int count = 0;
+      for (int position : positions) {
+        if (token[position] == STAR) {
+          next[count++] = position;
+        } else if (token[position] == ANY || (token[position] >= 0 && tokenClass[position] == characterClass)) {
+          next[count++] = position + 1;
+        }
+      }
+      return closure(next, count);
+    }
+
+    /**
+     * A star can match the empty string, so the positions after the stars are active, too. Returns the sorted
+     * positions without duplicates.
+     */
+    private int[] closure(int[] positions, int count) {
+      int[] closure = new int[Math.max(count * 2, 1)];
+      int size = 0;
+      for (int i = 0; i < count; i++) {
+        int position = positions[i];
+        while (true) {
+          if (size == closure.length) {
+            closure = Arrays.copyOf(closure, size * 2);
+          }
+          closure[size++] = position;
+          if (token[position] != STAR) {
+            break;
+          }
+          position++;
+        }
+      }
+      Arrays.sort(closure, 0, size);
+      int unique = 0;
+      for (int i = 0; i < size; i++) {
+        if (unique == 0 || closure[unique - 1] != closure[i]) {
+          closure[unique++] = closure[i];
+        }
+      }
+      return Arrays.copyOf(closure, unique);
+    }
+
+    private BitSet accepting(int[] positions) {
+      BitSet patterns = null;
+      for (int position : positions) {
+        if (token[position] == END) {
+          if (patterns == null) {
+            patterns = new BitSet();
+          }
+          patterns.set(patternOfPosition[position]);
+        }
+      }
+      return patterns == null ? NONE : patterns;
+    }
+
+    private int classOf(char c) {
+      if (c < asciiClasses.length) {
+        return asciiClasses[c];
+      }
+      return otherClasses.getOrDefault(c, 0);
+    }
+
+    /**
+     * The states which are built so far, keyed by their positions. If the limit is reached, the cache of the
+     * automaton is replaced by an empty one. Scans which still use the old cache finish with it.
+     */
+    private final class StateCache {
+
+      private final Map<State, State> states = new ConcurrentHashMap<>();
+      private final State start;
+
+      private StateCache() {
+        this.start = create(closure(startPositions, startPositions.length));
+        states.put(start, start);
+      }
+
+      private State get(int[] positions) {
+        if (positions.length == 0) {
+          return DEAD;
+        }
+        State state = create(positions);
+        State existing = states.get(state);
+        if (existing != null) {
+          return existing;
+        }
+        if (states.size() >= MAX_STATES && cache == this) {
+          cache = new StateCache();
+        }
+        existing = states.putIfAbsent(state, state);
+        return existing != null ? existing : state;
+      }
+
+      private State create(int[] positions) {
+        return new State(positions, accepting(positions), classCount);
+      }
+    }
+  }
+
+  private static final class State {
+
+    private final int[] positions;
+    private final int hash;
+    private final BitSet accepting;
+    private final State[] transitions;
+
+    private State(int[] positions, BitSet accepting, int classCount) {
+      this.positions = positions;
+      this.hash = Arrays.hashCode(positions);
+      this.accepting = accepting;
+      this.transitions = new State[classCount];
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      return o instanceof State state && Arrays.equals(positions, state.positions);
+    }
+
+    @Override
+    public int hashCode() {
+      return hash;
+    }
+  }
+
+  static final class Builder {
+
+    private final List<String> patterns = new ArrayList<>();
+
+    private Builder() {
+    }
+
+    /**
+     * Adds the pattern and returns its id.
+     */
+    int add(String pattern) {
+      patterns.add(pattern);
+      return patterns.size() - 1;
+    }
+
+    /**
+     * Builds the automaton. Only the patterns are split and translated, the states are created when they are used.
+     */
+    BranchAutomaton build() {
+      Map<String, BitSet> literals = new HashMap<>();
+      Map<String, Part> segments = new LinkedHashMap<>();
+      Part others = new Part();
+      BranchMatcher[] matchers = new BranchMatcher[patterns.size()];
+      for (int id = 0; id < patterns.size(); id++) {
+        String pattern = patterns.get(id).trim();
+        matchers[id] = BranchMatcher.compile(pattern);
+        int wildcard = firstWildcard(pattern);
+        int slash = pattern.indexOf('/');
+        if (wildcard < 0) {
+          literals.computeIfAbsent(pattern, p -> new BitSet()).set(id);
+        } else if (slash >= 0 && slash < wildcard) {
+          // the first segment of a matching branch is known, so only the rest is matched by the automaton
+          segments.computeIfAbsent(pattern.substring(0, slash), s -> new Part()).add(pattern.substring(slash + 1), id);
+        } else {
+          others.add(pattern, id);
+        }
+      }
+      Map<String, Dfa> dfas = new HashMap<>();
+      segments.forEach((segment, part) -> dfas.put(segment, part.build()));
+      return new BranchAutomaton(Map.copyOf(literals), Map.copyOf(dfas), others.build(), matchers);
+    }
+
+    private static int firstWildcard(String pattern) {
+      for (int i = 0; i < pattern.length(); i++) {
+        char c = pattern.charAt(i);
+        if (c == '*' || c == '?') {
+          return i;
+        }
+      }
+      return -1;
+    }
+  }
+
+  private static final class Part {
+
+    private final List<String> patterns = new ArrayList<>();
+    private final List<Integer> ids = new ArrayList<>();
+
+    private void add(String pattern, int id) {
+      patterns.add(pattern);
+      ids.add(id);
+    }
+
+    private Dfa build() {
+      return new Dfa(patterns, ids);
+    }
+  }
+}
@@ -0,0 +1,159 @@
+/*
+ * Copyright (c) 2020 - present Cloudogu GmbH
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License as published by the Free
+ * Software Foundation, version 3.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see https://www.gnu.org/licenses/.
+ */
+
+package sonia.scm.branchwp.service;
+
+import sonia.scm.util.GlobUtil;
+
+import java.util.List;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+/**
+ * Reusable matcher for the branch pattern of a {@link BranchWritePermission}. The matcher has the same semantics as
+ * {@link GlobUtil#matches(String, String)}, but the pattern is analyzed only once: patterns without wildcards are
+ * compared with {@link String#equals(Object)}, patterns like {@code release/*} with {@link String#startsWith(String)}
+ * and only real globs are compiled to a regular expression. Branch patterns of the type
+ * {@link BranchWritePermission.PatternType#REGEX} are matched by a {@link BranchRegex}.
+ */
+abstract class BranchMatcher {
+
+  private static final String GLOB_CHARACTERS = "*?\\{}[]";
+
+  static BranchMatcher compile(String pattern) {
+    String glob = pattern.trim();
+    if (isLiteral(glob, glob.length())) {
+      return new Literal(glob);
+    }
+    int last = glob.length() - 1;
+    if (glob.charAt(last) == '*' && isLiteral(glob, last)) {
+      return new Prefix(glob.substring(0, last));
+    }
+    try {
+      return new Glob(Pattern.compile(GlobUtil.convertGlobToRegEx(glob)));
+    } catch (PatternSyntaxException ex) {
+      // keep the behaviour of GlobUtil, which fails on evaluation
+      return new Invalid(ex);
+    }
+  }
+
+  static BranchMatcher compileRegex(String pattern) {
+    try {
+      return new Regex(BranchRegex.compile(pattern));
+    } catch (PatternSyntaxException ex) {
+      return new Invalid(ex);
+    }
+  }
+
+  private static boolean isLiteral(String glob, int length) {
+    for (int i = 0; i < length; i++) {
+      if (GLOB_CHARACTERS.indexOf(glob.charAt(i)) >= 0) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  abstract boolean matches(String branch);
+
+  /**
+   * Returns the segments, which every matching branch starts with, see {@link BranchPatternIndex#literalSegments(String)}.
+   */
+  List<String> literalSegments(String pattern) {
+    return BranchPatternIndex.literalSegments(pattern);
+  }
+
+  private static final class Literal extends BranchMatcher {
+
+    private final String branch;
+
+    private Literal(String branch) {
+      this.branch = branch;
+    }
+
+    @Override
+    boolean matches(String branch) {
+      return this.branch.equals(branch);
+    }
+  }
+
+  private static final class Prefix extends BranchMatcher {
+
+    private final String prefix;
+
+    private Prefix(String prefix) {
+      this.prefix = prefix;
+    }
+
+    @Override
+    boolean matches(String branch) {
+      return branch.startsWith(prefix);
+    }
+  }
+
+  private static final class Glob extends BranchMatcher {
+
+    private final Pattern pattern;
+
+    private Glob(Pattern pattern) {
+      this.pattern = pattern;
+    }
+
+    @Override
+    boolean matches(String branch) {
+      return pattern.matcher(branch).matches();
+    }
+  }
+
+  private static final class Regex extends BranchMatcher {
+
+    private final BranchRegex regex;
+
+    private Regex(BranchRegex regex) {
+      this.regex = regex;
+    }
+
+    @Override
+    boolean matches(String branch) {
+      return regex.matches(branch);
+    }
+
+    @Override
+    List<String> literalSegments(String pattern) {
+      return regex.literalSegments();
+    }
+  }
+
+  private static final class Invalid extends BranchMatcher {
+
+    private final PatternSyntaxException exception;
+
+    private Invalid(PatternSyntaxException exception) {
+      this.exception = exception;
+    }
+
+    @Override
+    boolean matches(String branch) {
+      throw exception;
+    }
+
+    @Override
+    List<String> literalSegments(String pattern) {
+      // tested for every branch, so that the pattern fails on evaluation like with GlobUtil
+      return List.of();
+    }
+  }
+}
@@ -0,0 +1,146 @@
+/*
+ * Copyright (c) 2020 - present Cloudogu GmbH
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License as published by the Free
+ * Software Foundation, version 3.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see https://www.gnu.org/licenses/.
+ */
+package sonia.scm.branchwp.service;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Predicate;
+
+/**
+ * Path segment trie over the literal prefixes of branch patterns. A value is stored at the node of the complete
+ * segments of the literal prefix of its pattern, e.g. {@code release/*} and {@code release/1.*} at the node
+ * {@code release}. Patterns without any wildcard are stored at the node of their full path. To evaluate a branch
+ * only the values on the path of the branch have to be tested, instead of all values of the index.
+ *
+ * @param <T> type of the values
+ */
+final class BranchPatternIndex<T> {
+
+  private static final String WILDCARD_CHARACTERS = "*?\\{}[]";
+
+  private final Node<T> root;
+
+  private BranchPatternIndex(Node<T> root) {
+    this.root = root;
+  }
+
+  static <T> Builder<T> builder() {
+    return new Builder<>();
+  }
+
+  /**
+   * Returns {@code true} if the predicate matches any value, which could apply to the given branch.
+   */
+  boolean anyMatch(String branch, Predicate<T> predicate) {
+    Node<T> node = root;
+    int start = 0;
+    while (true) {
+      if (node.anyMatch(predicate)) {
+        return true;
+      }
+      if (node.children.isEmpty() || start > branch.length()) {
+        return false;
+      }
+      int end = branch.indexOf('/', start);
+      if (end < 0) {
+        end = branch.length();
+      }
+      node = node.children.get(branch.substring(start, end));
+      if (node == null) {
+        return false;
+      }
+      start = end + 1;
+    }
+  }
+
+  /**
+   * Returns the segments of the pattern, which are known before the first wildcard.
+   */
+  static List<String> literalSegments(String pattern) {
+    String trimmed = pattern.trim();
+    for (int i = 0; i < trimmed.length(); i++) {
+      if (WILDCARD_CHARACTERS.indexOf(trimmed.charAt(i)) >= 0) {
+        return segments(trimmed.substring(0, i), false);
+      }
+    }
+    // the pattern is a literal, so the last segment is complete as well
+    return segments(trimmed, true);
+  }
+
+  /**
+   * Returns the complete segments of the literal prefix of a pattern. The part after the last slash is only a segment,
+   * if the prefix is the whole pattern.
+   */
+  static List<String> segments(String prefix, boolean complete) {
+    List<String> segments = new ArrayList<>();
+    int start = 0;
+    for (int i = 0; i < prefix.length(); i++) {
+      if (prefix.charAt(i) == '/') {
+        segments.add(prefix.substring(start, i));
+        start = i + 1;
+      }
+    }
+    if (complete) {
+      segments.add(prefix.substring(start));
+    }
+    return segments;
+  }
+
+  static final class Builder<T> {
+
+    private final Node<T> root = new Node<>();
+
+    private Builder() {
+    }
+
+    Builder<T> add(String pattern, T value) {
+      return add(literalSegments(pattern), value);
+    }
+
+    /**
+     * Adds the value at the node of the given segments, which every branch matched by the value has to start with.
+     */
+    Builder<T> add(List<String> segments, T value) {
+      Node<T> node = root;
+      for (String segment : segments) {
+        node = node.children.computeIfAbsent(segment, s -> new Node<>());
+      }
+      node.values.add(value);
+      return this;
+    }
+
+    BranchPatternIndex<T> build() {
+      return new BranchPatternIndex<>(root);
+    }
+  }
+
+  private static final class Node<T> {
+
+    private final Map<String, Node<T>> children = new HashMap<>();
+    private final List<T> values = new ArrayList<>();
+
+    private boolean anyMatch(Predicate<T> predicate) {
+      for (T value : values) {
+        if (predicate.test(value)) {
+          return true;
+        }
+      }
+      return false;
+    }
+  }
+}
@@ -0,0 +1,185 @@
+/*
+ * Copyright (c) 2020 - present Cloudogu GmbH
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License as published by the Free
+ * Software Foundation, version 3.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see https://www.gnu.org/licenses/.
+ */
+
+package sonia.scm.branchwp.service;
+
+import com.google.common.base.Strings;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import sonia.scm.user.User;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Branch pattern which contains the placeholders {@code {username}} or {@code {mail}}. The pattern is split into
+ * literal segments and placeholders once. Simple templates like {@code {username}/*} are matched directly against
+ * the branch with the values of the user, all others are expanded by concatenation and matched with a
+ * {@link BranchMatcher}. The matchers of the last expanded patterns are kept, so that the glob of a user is not
+ * compiled again for every branch and every push.
+ */
+final class BranchPatternTemplate {
+
+  private static final String USERNAME = "{username}";
+  private static final String MAIL = "{mail}";
+  private static final String GLOB_CHARACTERS = "*?\\{}[]";
+  private static final int MAX_MATCHERS = 64;
+
+  private final String[] segments;
+  private final Variable[] variables;
+  private final boolean direct;
+  private final boolean prefix;
+  private volatile Cache<String, BranchMatcher> matchers;
+
+  private BranchPatternTemplate(String[] segments, Variable[] variables, boolean direct, boolean prefix) {
+    this.segments = segments;
+    this.variables = variables;
+    this.direct = direct;
+    this.prefix = prefix;
+  }
+
+  /**
+   * Returns the parsed template or {@code null}, if the pattern does not contain any placeholder.
+   */
+  static BranchPatternTemplate parse(String pattern) {
+    if (!pattern.contains(USERNAME) && !pattern.contains(MAIL)) {
+      return null;
+    }
+
+    String trimmed = pattern.trim();
+    List<String> segments = new ArrayList<>();
+    List<Variable> variables = new ArrayList<>();
+    int start = 0;
+    while (true) {
+      int username = trimmed.indexOf(USERNAME, start);
+      int mail = trimmed.indexOf(MAIL, start);
+      if (username < 0 && mail < 0) {
+        break;
+      }
+      boolean isUsername = mail < 0 || (username >= 0 && username < mail);
+      int index = isUsername ? username : mail;
+      segments.add(trimmed.substring(start, index));
+      variables.add(isUsername ? Variable.USERNAME : Variable.MAIL);
+      start = index + (isUsername ? USERNAME : MAIL).length();
+    }
+    segments.add(trimmed.substring(start));
+
+    String last = segments.get(segments.size() - 1);
+    boolean prefix = !last.isEmpty() && last.charAt(last.length() - 1) == '*';
+    if (prefix) {
+      segments.set(segments.size() - 1, last.substring(0, last.length() - 1));
+    }
+    boolean direct = segments.stream().allMatch(BranchPatternTemplate::isPlain);
+    if (prefix && !direct) {
+      segments.set(segments.size() - 1, last);
+      prefix = false;
+    }
+
+    return new BranchPatternTemplate(segments.toArray(new String[0]), variables.toArray(new Variable[0]), direct, prefix);
+  }
+
+  boolean matches(User user, String branch) {
+    String username = Strings.nullToEmpty(user.getName());
+    String mail = Strings.nullToEmpty(user.getMail());
+    if (direct && isValue(Variable.USERNAME, username) && isValue(Variable.MAIL, mail)) {
+      return matchesDirect(username, mail, branch);
+    }
+    return matcher(username, mail).matches(branch);
+  }
+
+  /**
+   * Returns the matcher of the expanded pattern, which is compiled only once for the same values.
+   */
+  BranchMatcher matcher(String username, String mail) {
+    Cache<String, BranchMatcher> cache = matchers;
+    if (cache == null) {
+      // created on first use, because most templates are matched directly; a concurrently created cache is replaced
+      cache = CacheBuilder.newBuilder().concurrencyLevel(1).maximumSize(MAX_MATCHERS).build();
+      matchers = cache;
+    }
+    String pattern = expand(username, mail);
+    BranchMatcher matcher = cache.getIfPresent(pattern);
+    if (matcher == null) {
+      matcher = BranchMatcher.compile(pattern);
+      cache.put(pattern, matcher);
+    }
+    return matcher;
+  }
+
+  private boolean matchesDirect(String username, String mail, String branch) {
+    int position = 0;
+    for (int i = 0; i < segments.length; i++) {
+      if (!branch.startsWith(segments[i], position)) {
+        return false;
+      }
+      position += segments[i].length();
+      if (i < variables.length) {
+        String value = variables[i] == Variable.USERNAME ? username : mail;
+        if (!branch.startsWith(value, position)) {
+          return false;
+        }
+        position += value.length();
+      }
+    }
+    return prefix || position == branch.length();
+  }
+
+  private String expand(String username, String mail) {
+    StringBuilder builder = new StringBuilder();
+    for (int i = 0; i < segments.length; i++) {
+      builder.append(segments[i]);
+      if (i < variables.length) {
+        builder.append(variables[i] == Variable.USERNAME ? username : mail);
+      }
+    }
+    if (prefix) {
+      builder.append('*');
+    }
+    return builder.toString();
+  }
+
+  private static boolean isPlain(String segment) {
+    for (int i = 0; i < segment.length(); i++) {
+      if (GLOB_CHARACTERS.indexOf(segment.charAt(i)) >= 0) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Values of the user can only be matched directly, if they would not change the meaning of the pattern.
+   */
+  private boolean isValue(Variable variable, String value) {
+    for (Variable used : variables) {
+      if (used == variable) {
+        return isValue(value);
+      }
+    }
+    return true;
+  }
+
+  private static boolean isValue(String value) {
+    return !value.isEmpty()
+      && isPlain(value)
+      && !Character.isWhitespace(value.charAt(0))
+      && !Character.isWhitespace(value.charAt(value.length() - 1));
+  }
+
+  private enum Variable {
+    USERNAME, MAIL
+  }
+}
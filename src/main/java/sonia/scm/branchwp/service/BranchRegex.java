@@ -0,0 +1,712 @@
+/*
+ * Copyright (c) 2020 - present Cloudogu GmbH
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License as published by the Free
+ * Software Foundation, version 3.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see https://www.gnu.org/licenses/.
+ */
+
+
+package sonia.scm.branchwp.service;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.regex.PatternSyntaxException;
+
+/**
+ * Regular expression for branch patterns, which is matched in linear time. The syntax is a subset of
+ * {@link java.util.regex.Pattern}: literals, {@code .}, character classes with ranges, the predefined classes
+ * {@code \d}, {@code \w} and {@code \s} and their negations, groups, alternations, the quantifiers {@code *},
+ * {@code +}, {@code ?} and {@code {n,m}} as well as {@code ^} and {@code $}. Back references, lookarounds, possessive
+ * quantifiers and flags are rejected, because they can not be matched without backtracking.
+ * <p>
+ * The expression is compiled into a Thompson automaton, whose states are tracked in parallel while the branch is
+ * scanned once. The time to match a branch is therefore linear in the length of the branch and bounded by the size of
+ * the compiled program, no matter how the expression is written. The length of the expression, the counts of
+ * repetitions, the depth of groups and the size of the program are limited, so that a single expression can not
+ * exhaust the memory or the time of a push either. Like {@link java.util.regex.Matcher#matches()} the expression has
+ * to match the whole branch.
+ */
+final class BranchRegex {
+
+  static final int MAX_PATTERN_LENGTH = 1024;
+  static final int MAX_REPETITION = 1000;
+  static final int MAX_NESTING = 64;
+  static final int MAX_PROGRAM_SIZE = 10000;
+
+  private static final int OP_CHARS = 0;
+  private static final int OP_SPLIT = 1;
+  private static final int OP_JUMP = 2;
+  private static final int OP_BEGIN = 3;
+  private static final int OP_END = 4;
+  private static final int OP_MATCH = 5;
+
+  private final int[] ops;
+  private final int[] first;
+  private final int[] second;
+  private final CharClass[] classes;
+  private final List<String> literalSegments;
+
+  private BranchRegex(int[] ops, int[] first, int[] second, CharClass[] classes, List<String> literalSegments) {
+    this.ops = ops;
+    this.first = first;
+    this.second = second;
+    this.classes = classes;
+    this.literalSegments = literalSegments;
+  }
+
+  /**
+   * Compiles the expression.
+   *
+   * @throws PatternSyntaxException if the expression is invalid, uses unsupported constructs or exceeds a limit
+   */
+  static BranchRegex compile(String pattern) {
+    if (pattern.length() > MAX_PATTERN_LENGTH) {
+      throw new PatternSyntaxException("pattern is longer than " + MAX_PATTERN_LENGTH + " characters", pattern, -1);
+    }
+    Node root = new Parser(pattern).parse();
+    long size = size(root) + 1;
+    if (size > MAX_PROGRAM_SIZE) {
+      throw new PatternSyntaxException("pattern exceeds the limit of " + MAX_PROGRAM_SIZE + " instructions", pattern, -1);
+    }
+    Compiler compiler = new Compiler((int) size);
+    compiler.emit(root);
+    compiler.add(OP_MATCH, 0, 0, null);
+    return new BranchRegex(compiler.ops, compiler.first, compiler.second, compiler.classes, literalSegments(root));
+  }
+
+  /**
+   * Returns the segments, which every matching branch starts with, like {@link BranchPatternIndex#literalSegments(String)}.
+   */
+  List<String> literalSegments() {
+    return literalSegments;
+  }
+
+  boolean matches(String branch) {
+    int size = ops.length;
+    int[] current = new int[size];
+    int[] next = new int[size];
+    int[] marks = new int[size];
+    int[] stack = new int[2 * size + 1];
+    int length = branch.length();
+    int generation = 1;
+    int count = addClosure(0, current, 0, marks, generation, stack, 0, length);
+    int position = 0;
+    while (position < length) {
+      if (count == 0) {
+        return false;
+      }
+      int codePoint = branch.codePointAt(position);
+      position += Character.charCount(codePoint);
+      generation++;
+      int nextCount = 0;
+      for (int i = 0; i < count; i++) {
+        int pc = current[i];
+        if (ops[pc] == OP_CHARS && classes[pc].contains(codePoint)) {
+          nextCount = addClosure(pc + 1, next, nextCount, marks, generation, stack, position, length);
+        }
+      }
+      int[] swap = current;
+      current = next;
+      next = swap;
+      count = nextCount;
+    }
+    for (int i = 0; i < count; i++) {
+      if (ops[current[i]] == OP_MATCH) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Adds all instructions, which consume a character or accept the branch and are reachable from the given
+   * instruction without consuming a character. Every instruction is visited at most once per position.
+   */
+  private int addClosure(int start, int[] list, int count, int[] marks, int generation, int[] stack, int position, int length) {
+    int top = 0;
+    stack[top++] = start;
+    while (top > 0) {
+      int pc = stack[--top];
+      if (marks[pc] == generation) {
+        continue;
+      }
+      marks[pc] = generation;
+      switch (ops[pc]) {
+        case OP_JUMP -> stack[top++] = first[pc];
+        case OP_SPLIT -> {
+          stack[top++] = second[pc];
+          stack[top++] = first[pc];
+        }
+        case OP_BEGIN -> {
+          if (position == 0) {
+            stack[top++] = pc + 1;
+          }
+        }
+        case OP_END -> {
+          if (position == length) {
+            stack[top++] = pc + 1;
+          }
+        }
+        default -> list[count++] = pc;
+      }
+    }
+    return count;
+  }
+
+  /**
+   * Returns the number of instructions of the node, the result is capped above {@link #MAX_PROGRAM_SIZE}.
+   */
+  private static long size(Node node) {
+    long size;
+    if (node instanceof Concatenation concatenation) {
+      size = 0;
+      for (Node child : concatenation.nodes()) {
+        size += size(child);
+      }
+    } else if (node instanceof Alternation alternation) {
+      size = 2L * (alternation.nodes().size() - 1);
+      for (Node child : alternation.nodes()) {
+        size += size(child);
+      }
+    } else if (node instanceof Repeat repeat) {
+      long child = size(repeat.node());
+      if (repeat.max() < 0) {
+        size = repeat.min() == 0 ? child + 2 : repeat.min() * child + 1;
+      } else {
+        size = repeat.min() * child + (repeat.max() - repeat.min()) * (child + 1);
+      }
+    } else {
+      size = 1;
+    }
+    return Math.min(size, MAX_PROGRAM_SIZE + 1);
+  }
+
+  private static List<String> literalSegments(Node root) {
+    List<Node> nodes = root instanceof Concatenation concatenation ? concatenation.nodes() : List.of(root);
+    int index = 0;
+    while (index < nodes.size() && nodes.get(index) instanceof Anchor anchor && anchor.begin()) {
+      index++;
+    }
+    StringBuilder prefix = new StringBuilder();
+    while (index < nodes.size() && nodes.get(index) instanceof Chars chars && chars.literal() >= 0) {
+      prefix.appendCodePoint(chars.literal());
+      index++;
+    }
+    boolean complete = true;
+    for (int i = index; i < nodes.size(); i++) {
+      if (!(nodes.get(i) instanceof Anchor anchor) || anchor.begin()) {
+        complete = false;
+        break;
+      }
+    }
+    return BranchPatternIndex.segments(prefix.toString(), complete);
+  }
+
+  private static final class Compiler {
+
+    private final int[] ops;
+    private final int[] first;
+    private final int[] second;
+    private final CharClass[] classes;
+    private int pc;
+
+    private Compiler(int size) {
+      this.ops = new int[size];
+      this.first = new int[size];
+      this.second = new int[size];
+      this.classes = new CharClass[size];
+    }
+
+    private int add(int op, int first, int second, CharClass chars) {
+      ops[pc] = op;
+      this.first[pc] = first;
+      this.second[pc] = second;
+      classes[pc] = chars;
+      return pc++;
+    }
+
+    private void emit(Node node) {
+      if (node instanceof Chars chars) {
+        add(OP_CHARS, 0, 0, chars.chars());
+      } else if (node instanceof Anchor anchor) {
+        add(anchor.begin() ? OP_BEGIN : OP_END, 0, 0, null);
+      } else if (node instanceof Concatenation concatenation) {
+        for (Node child : concatenation.nodes()) {
+          emit(child);
+        }
+      } else if (node instanceof Alternation alternation) {
+        emitAlternation(alternation.nodes());
+      } else if (node instanceof Repeat repeat) {
+        emitRepeat(repeat);
+      }
+    }
+
+    private void emitAlternation(List<Node> nodes) {
+      int[] jumps = new int[nodes.size() - 1];
+      for (int i = 0; i < jumps.length; i++) {
+        int split = add(OP_SPLIT, pc + 1, 0, null);
+        emit(nodes.get(i));
+        jumps[i] = add(OP_JUMP, 0, 0, null);
+        second[split] = pc;
+      }
+      emit(nodes.get(jumps.length));
+      for (int jump : jumps) {
+        first[jump] = pc;
+      }
+    }
+
+    private void emitRepeat(Repeat repeat) {
+      if (repeat.max() < 0 && repeat.min() == 0) {
+        int split = add(OP_SPLIT, pc + 1, 0, null);
+        emit(repeat.node());
+        add(OP_JUMP, split, 0, null);
+        second[split] = pc;
+      } else if (repeat.max() < 0) {
+        for (int i = 1; i < repeat.min(); i++) {
+          emit(repeat.node());
+        }
+        int start = pc;
+        emit(repeat.node());
+        add(OP_SPLIT, start, pc + 1, null);
+      } else {
+        for (int i = 0; i < repeat.min(); i++) {
+          emit(repeat.node());
+        }
+        int[] splits = new int[repeat.max() - repeat.min()];
+        for (int i = 0; i < splits.length; i++) {
+          splits[i] = add(OP_SPLIT, pc + 1, 0, null);
+          emit(repeat.node());
+        }
+        for (int split : splits) {
+          second[split] = pc;
+        }
+      }
+    }
+  }
+
+  private static final class Parser {
+
+    private final String pattern;
+    private int position;
+    private int depth;
+
+    private Parser(String pattern) {
+      this.pattern = pattern;
+    }
+
+    private Node parse() {
+      Node node = parseAlternation();
+      if (position < pattern.length()) {
+        throw error("unmatched closing ')'");
+      }
+      return node;
+    }
+
+    private Node parseAlternation() {
+      List<Node> nodes = new ArrayList<>();
+      nodes.add(parseConcatenation());
+      while (position < pattern.length() && pattern.charAt(position) == '|') {
+        position++;
+        nodes.add(parseConcatenation());
+      }
+      return nodes.size() == 1 ? nodes.get(0) : new Alternation(nodes);
+    }
+
+    private Node parseConcatenation() {
+      List<Node> nodes = new ArrayList<>();
+      while (position < pattern.length() && pattern.charAt(position) != '|' && pattern.charAt(position) != ')') {
+        nodes.add(parseRepeat());
+      }
+      return nodes.size() == 1 ? nodes.get(0) : new Concatenation(nodes);
+    }
+
+    private Node parseRepeat() {
+      Node node = parseAtom();
+      if (position >= pattern.length()) {
+        return node;
+      }
+      int min;
+      int max;
+      switch (pattern.charAt(position)) {
+        case '*' -> {
+          min = 0;
+          max = -1;
+        }
+        case '+' -> {
+          min = 1;
+          max = -1;
+        }
+        case '?' -> {
+          min = 0;
+          max = 1;
+        }
+        case '{' -> {
+          position++;
+          min = parseCount();
+          max = min;
+          if (position < pattern.length() && pattern.charAt(position) == ',') {
+            position++;
+            max = position < pattern.length() && pattern.charAt(position) == '}' ? -1 : parseCount();
+          }
+          if (position >= pattern.length() || pattern.charAt(position) != '}') {
+            throw error("unclosed counted repetition");
+          }
+          if (max >= 0 && max < min) {
+            throw error("illegal repetition range");
+          }
+        }
+        default -> {
+          return node;
+        }
+      }
+      position++;
+      if (position < pattern.length() && pattern.charAt(position) == '?') {
+        // a reluctant quantifier matches the same branches as a greedy one
+        position++;
+      } else if (position < pattern.length() && pattern.charAt(position) == '+') {
+        throw error("possessive quantifiers are not supported");
+      }
+      return new Repeat(node, min, max);
+    }
+
+    private int parseCount() {
+      int start = position;
+      int count = 0;
+      while (position < pattern.length() && Character.isDigit(pattern.charAt(position)) && pattern.charAt(position) < 128) {
+        count = Math.min(count * 10 + pattern.charAt(position) - '0', MAX_REPETITION + 1);
+        position++;
+      }
+      if (position == start) {
+        throw error("illegal repetition");
+      }
+      if (count > MAX_REPETITION) {
+        throw error("repetition exceeds the limit of " + MAX_REPETITION);
+      }
+      return count;
+    }
+
+    private Node parseAtom() {
+      char c = pattern.charAt(position);
+      switch (c) {
+        case '(' -> {
+          return parseGroup();
+        }
+        case '[' -> {
+          position++;
+          return new Chars(parseClass(), -1);
+        }
+        case '.' -> {
+          position++;
+          return new Chars(CharClass.DOT, -1);
+        }
+        case '^' -> {
+          position++;
+          return new Anchor(true);
+        }
+        case '$' -> {
+          position++;
+          return new Anchor(false);
+        }
+        case '\\' -> {
+          position++;
+          CharClass predefined = parsePredefinedClass();
+          if (predefined != null) {
+            return new Chars(predefined, -1);
+          }
+          return literal(parseEscapedLiteral());
+        }
+        case '*', '+', '?' -> throw error("dangling meta character '" + c + "'");
+        case '{' -> throw error("illegal repetition");
+        default -> {
+          int codePoint = pattern.codePointAt(position);
+          position += Character.charCount(codePoint);
+          return literal(codePoint);
+        }
+      }
+    }
+
+    private Node parseGroup() {
+      position++;
+      if (pattern.startsWith("?:", position)) {
+        position += 2;
+      } else if (position < pattern.length() && pattern.charAt(position) == '?') {
+        throw error("only non capturing groups are supported");
+      }
+      if (++depth > MAX_NESTING) {
+        throw error("groups are nested deeper than " + MAX_NESTING);
+      }
+      Node node = parseAlternation();
+      if (position >= pattern.length()) {
+        throw error("unclosed group");
+      }
+      position++;
+      depth--;
+      return node;
+    }
+
+    private CharClass parseClass() {
+      boolean negated = position < pattern.length() && pattern.charAt(position) == '^';
+      if (negated) {
+        position++;
+      }
+      CharClass.Builder builder = new CharClass.Builder();
+      boolean empty = true;
+      while (true) {
+        if (position >= pattern.length()) {
+          throw error("unclosed character class");
+        }
+        char c = pattern.charAt(position);
+        if (c == ']') {
+          position++;
+          break;
+        }
+        if (c == '[') {
+          throw error("nested character classes are not supported");
+        }
+        if (pattern.startsWith("&&", position)) {
+          throw error("intersections of character classes are not supported");
+        }
+        empty = false;
+        if (c == '\\') {
+          position++;
+          CharClass predefined = parsePredefinedClass();
+          if (predefined != null) {
+            builder.add(predefined);
+            continue;
+          }
+        }
+        int low = parseClassLiteral(c);
+        if (position + 1 < pattern.length() && pattern.charAt(position) == '-' && pattern.charAt(position + 1) != ']') {
+          position++;
+          char next = pattern.charAt(position);
+          if (next == '\\') {
+            position++;
+            if (parsePredefinedClass() != null) {
+              throw error("illegal character range");
+            }
+          }
+          int high = parseClassLiteral(next);
+          if (high < low) {
+            throw error("illegal character range");
+          }
+          builder.add(low, high);
+        } else {
+          builder.add(low, low);
+        }
+      }
+      if (empty) {
+        throw error("empty character class");
+      }
+      CharClass chars = builder.build();
+      return negated ? chars.negate() : chars;
+    }
+
+    /**
+     * Reads a literal of a character class, if it starts with a backslash, the backslash is already consumed.
+     */
+    private int parseClassLiteral(char first) {
+      if (first == '\\') {
+        return parseEscapedLiteral();
+      }
+      int codePoint = pattern.codePointAt(position);
+      position += Character.charCount(codePoint);
+      return codePoint;
+    }
+
+    private CharClass parsePredefinedClass() {
+      if (position >= pattern.length()) {
+        throw error("unexpected end of pattern");
+      }
+      CharClass chars = switch (pattern.charAt(position)) {
+        case 'd' -> CharClass.DIGIT;
+        case 'D' -> CharClass.DIGIT.negate();
+        case 'w' -> CharClass.WORD;
+        case 'W' -> CharClass.WORD.negate();
+        case 's' -> CharClass.SPACE;
+        case 'S' -> CharClass.SPACE.negate();
+        default -> null;
+      };
+      if (chars != null) {
+        position++;
+      }
+      return chars;
+    }
+
+    private int parseEscapedLiteral() {
+      if (position >= pattern.length()) {
+        throw error("unexpected end of pattern");
+      }
+      char c = pattern.charAt(position);
+      int literal = switch (c) {
+        case 't' -> '\t';
+        case 'n' -> '\n';
+        case 'r' -> '\r';
+        case 'f' -> '\f';
+        case 'a' -> 0x07;
+        case 'e' -> 0x1B;
+        default -> -1;
+      };
+      if (literal < 0) {
+        if (c >= '0' && c <= '9') {
+          throw error("back references are not supported");
+        }
+        if ((c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z')) {
+          throw error("unsupported escape sequence '\\" + c + "'");
+        }
+        literal = pattern.codePointAt(position);
+      }
+      position += Character.charCount(literal);
+      return literal;
+    }
+
+    private Node literal(int codePoint) {
+      return new Chars(new CharClass.Builder().add(codePoint, codePoint).build(), codePoint);
+    }
+
+    private PatternSyntaxException error(String description) {
+      return new PatternSyntaxException(description, pattern, position);
+    }
+  }
+
+  /**
+   * Sorted and disjoint ranges of code points. The characters of the ascii range are additionally held as bitmasks.
+   */
+  private static final class CharClass {
+
+    private static final int MAX_CODE_POINT = Character.MAX_CODE_POINT;
+
+    private static final CharClass DIGIT = new Builder().add('0', '9').build();
+    private static final CharClass WORD = new Builder().add('a', 'z').add('A', 'Z').add('_', '_').add('0', '9').build();
+    private static final CharClass SPACE = new Builder().add('\t', '\r').add(' ', ' ').build();
+    private static final CharClass DOT = new Builder()
+      .add('\n', '\n').add('\r', '\r').add(0x85, 0x85).add(0x2028, 0x2029)
+      .build()
+      .negate();
+
+    private final int[] ranges;
+    private final long low;
+    private final long high;
+
+    private CharClass(int[] ranges) {
+      this.ranges = ranges;
+      long lowBits = 0;
+      long highBits = 0;
+      for (int c = 0; c < 128; c++) {
+        if (search(c)) {
+          if (c < 64) {
+            lowBits |= 1L << c;
+          } else {
+            highBits |= 1L << (c - 64);
+          }
+        }
+      }
+      this.low = lowBits;
+      this.high = highBits;
+    }
+
+    private boolean contains(int codePoint) {
+      if (codePoint < 64) {
+        return (low & (1L << codePoint)) != 0;
+      }
+      if (codePoint < 128) {
+        return (high & (1L << (codePoint - 64))) != 0;
+      }
+      return search(codePoint);
+    }
+
+    private boolean search(int codePoint) {
+      int from = 0;
+      int to = ranges.length / 2 - 1;
+      while (from <= to) {
+        int middle = (from + to) >>> 1;
+        if (codePoint < ranges[2 * middle]) {
+          to = middle - 1;
+        } else if (codePoint > ranges[2 * middle + 1]) {
+          from = middle + 1;
+        } else {
+          return true;
+        }
+      }
+      return false;
+    }
+
+    private CharClass negate() {
+      Builder builder = new Builder();
+      int start = 0;
+      for (int i = 0; i < ranges.length; i += 2) {
+        if (ranges[i] > start) {
+          builder.add(start, ranges[i] - 1);
+        }
+        start = ranges[i + 1] + 1;
+      }
+      if (start <= MAX_CODE_POINT) {
+        builder.add(start, MAX_CODE_POINT);
+      }
+      return builder.build();
+    }
+
+    private static final class Builder {
+
+      private final List<int[]> ranges = new ArrayList<>();
+
+      private Builder add(int from, int to) {
+        ranges.add(new int[]{from, to});
+        return this;
+      }
+
+      private Builder add(CharClass chars) {
+        for (int i = 0; i < chars.ranges.length; i += 2) {
+          add(chars.ranges[i], chars.ranges[i + 1]);
+        }
+        return this;
+      }
+
+      private CharClass build() {
+        int[][] sorted = ranges.toArray(new int[0][]);
+        Arrays.sort(sorted, (a, b) -> Integer.compare(a[0], b[0]));
+        int[] merged = new int[sorted.length * 2];
+        int count = 0;
+        for (int[] range : sorted) {
+          if (count > 0 && range[0] <= merged[count - 1] + 1) {
+            merged[count - 1] = Math.max(merged[count - 1], range[1]);
+          } else {
+            merged[count++] = range[0];
+            merged[count++] = range[1];
+          }
+        }
+        return new CharClass(Arrays.copyOf(merged, count));
+      }
+    }
+  }
+
+  private interface Node {
+  }
+
+  /**
+   * One character of the class, {@code literal} is the code point if the class was written as a single literal.
+   */
+  private record Chars(CharClass chars, int literal) implements Node {
+  }
+
+  private record Anchor(boolean begin) implements Node {
+  }
+
+  private record Concatenation(List<Node> nodes) implements Node {
+  }
+
+  private record Alternation(List<Node> nodes) implements Node {
+  }
+
+  private record Repeat(Node node, int min, int max) implements Node {
+  }
+}
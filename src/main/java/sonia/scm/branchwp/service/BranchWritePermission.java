@@ -40,9 +40,29 @@ public class BranchWritePermission implements Serializable {
   private String name;
   private boolean group;
   private Type type;
+  /**
+   * Syntax of the branch pattern, {@code null} stands for {@link PatternType#GLOB}.
+   */
+  private PatternType patternType;
+
+  public BranchWritePermission(String branch, String name, boolean group, Type type) {
+    this(branch, name, group, type, null);
+  }
 
   public enum Type {
     ALLOW, DENY
   }
 
+  public enum PatternType {
+    /**
+     * Glob with wildcards and the placeholders {@code {username}} and {@code {mail}}.
+     */
+    GLOB,
+    /**
+     * Regular expression, which has to match the whole branch name. It is matched in linear time of the length of the
+     * branch name, so back references and lookarounds are not supported.
+     */
+    REGEX
+  }
+
 }
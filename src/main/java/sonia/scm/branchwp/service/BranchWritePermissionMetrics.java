@@ -0,0 +1,114 @@
+/*
+ * Copyright (c) 2020 - present Cloudogu GmbH
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License as published by the Free
+ * Software Foundation, version 3.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see https://www.gnu.org/licenses/.
+ */
+package sonia.scm.branchwp.service;
+
+import com.google.common.cache.Cache;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.core.instrument.binder.cache.GuavaCacheMetrics;
+import sonia.scm.repository.Repository;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Meters of the branch write protection, which are registered at the meter registry of SCM-Manager.
+ */
+final class BranchWritePermissionMetrics {
+
+  private static final String PREFIX = "scm.branchwp.";
+
+  private final MeterRegistry registry;
+  private final Counter allowed;
+  private final Counter denied;
+  private final DistributionSummary refs;
+  private final Timer storeLoad;
+  private final Timer groupResolution;
+  /**
+   * The evaluation timers by repository id, so that a timer is only built and registered once per repository.
+   */
+  private final Map<String, Timer> evaluations = new ConcurrentHashMap<>();
+
+  BranchWritePermissionMetrics(MeterRegistry registry) {
+    this.registry = registry;
+    this.allowed = decisionCounter("allow");
+    this.denied = decisionCounter("deny");
+    this.refs = DistributionSummary.builder(PREFIX + "push.refs")
+      .description("Number of refs evaluated per push")
+      .register(registry);
+    this.storeLoad = Timer.builder(PREFIX + "store.load")
+      .description("Time to load and compile the configuration of a repository")
+      .register(registry);
+    this.groupResolution = Timer.builder(PREFIX + "groups.resolve")
+      .description("Time to resolve the groups of a user")
+      .register(registry);
+  }
+
+  private Counter decisionCounter(String result) {
+    return Counter.builder(PREFIX + "decisions")
+      .description("Branch write permission decisions")
+      .tag("result", result)
+      .register(registry);
+  }
+
+  <K, V, C extends Cache<K, V>> C monitor(C cache, String name) {
+    return GuavaCacheMetrics.monitor(registry, cache, "branchwp." + name);
+  }
+
+  Timer.Sample start() {
+    return Timer.start(registry);
+  }
+
+  void evaluated(Timer.Sample sample, Repository repository) {
+    sample.stop(evaluations.computeIfAbsent(repository.getId(), id -> evaluationTimer(repository)));
+  }
+
+  private Timer evaluationTimer(Repository repository) {
+    return Timer.builder(PREFIX + "evaluation")
+      .description("Time to evaluate the branch write permissions of a repository")
+      .tag("repository", repository.getNamespaceAndName().toString())
+      .register(registry);
+  }
+
+  /**
+   * Removes the meters of the repository from the registry, e.g. because the repository has been deleted or its
+   * namespace and name, which are used as tag, have changed.
+   */
+  void removed(String repositoryId) {
+    Timer timer = evaluations.remove(repositoryId);
+    if (timer != null) {
+      registry.remove(timer);
+    }
+  }
+
+  void decided(boolean privileged) {
+    (privileged ? allowed : denied).increment();
+  }
+
+  void pushed(int refCount) {
+    refs.record(refCount);
+  }
+
+  void storeLoaded(Timer.Sample sample) {
+    sample.stop(storeLoad);
+  }
+
+  void groupsResolved(Timer.Sample sample) {
+    sample.stop(groupResolution);
+  }
+}
@@ -16,43 +16,165 @@
 
 package sonia.scm.branchwp.service;
 
-import com.google.common.base.Strings;
+import com.google.common.base.Suppliers;
+import com.google.common.base.Throwables;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import com.google.common.util.concurrent.ExecutionError;
+import com.google.common.util.concurrent.Striped;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import sonia.scm.ConcurrentModificationException;
+import sonia.scm.NotFoundException;
+import sonia.scm.branchwp.BranchWritePermissionException;
+import sonia.scm.branchwp.InvalidBranchPatternException;
+import sonia.scm.config.ConfigurationPermissions;
 import sonia.scm.group.GroupCollector;
 import sonia.scm.repository.NamespaceAndName;
 import sonia.scm.repository.Repository;
 import sonia.scm.repository.RepositoryManager;
 import sonia.scm.repository.RepositoryPermissions;
-import sonia.scm.store.ConfigurationStore;
+import sonia.scm.store.BlobStoreFactory;
 import sonia.scm.store.ConfigurationStoreFactory;
+import sonia.scm.store.DataStoreFactory;
 import sonia.scm.user.User;
 import sonia.scm.util.AssertUtil;
-import sonia.scm.util.GlobUtil;
 
 import jakarta.inject.Inject;
+import jakarta.inject.Singleton;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
 import java.util.Set;
-import java.util.function.BooleanSupplier;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
+import java.util.function.UnaryOperator;
+import java.util.regex.PatternSyntaxException;
+
+import static sonia.scm.ContextEntry.ContextBuilder.entity;
+import static sonia.scm.NotFoundException.notFound;
 
 /**
  * Store the branch write permissions in the repository store.
  *
  * @author Mohamed Karray
  */
+@Singleton
 public class BranchWritePermissionService {
 
   public static final String VAR_MAIL = "\\{mail\\}";
   public static final String VAR_USERNAME = "\\{username\\}";
   public static final String CUSTOM_ACTION = "branchwp";
 
-  private final ConfigurationStoreFactory storeFactory;
+  private final BranchWritePermissionStore store;
   private final RepositoryManager repositoryManager;
-  private final GroupCollector groupCollector;
-  private static final String STORE_NAME = "branchWritePermission";
+  private final BranchWritePermissionMetrics metrics;
+  private final GroupResolver groupResolver;
+  /**
+   * The immutable compiled permissions of each repository, which are used by all evaluations. Repositories without
+   * enabled permissions share {@link CompiledBranchWritePermissions#DISABLED}. Readers never lock. Writers compile the
+   * new permissions first and replace the entry with a single put, so that readers either see the old or the new
+   * permissions as a whole. A load which overlaps with a put is discarded by the cache, so that a stale load can not
+   * replace the result of a write. Entries, which have been compiled while the global or a namespace level has
+   * changed, are detected by the generation of the inherited levels and compiled again. An entry is weighed by the
+   * rules of its repository only, the inherited rules are shared by many entries and are bounded by the cache of the
+   * merged permissions.
+   */
+  private final Cache<String, Published> published;
+  private final AtomicLong inheritedGeneration = new AtomicLong();
+  private final Cache<MergeKey, CompiledBranchWritePermissions> mergedPermissions;
+  private final Cache<String, Level> namespaceLevels;
+  private volatile Level globalLevel;
+  private final Cache<String, String> versions;
+  private final Cache<DecisionKey, Boolean> decisions;
+  private final Cache<SnapshotKey, CompiledBranchWritePermissions.Snapshot> snapshots;
+  private static final int MAX_COMPILED_PERMISSIONS = 1000;
+  private static final int MAX_PUBLISHED_WEIGHT = 1000000;
+  private static final int MAX_VERSIONS = 100000;
+  private static final int MAX_NAMESPACE_LEVELS = 10000;
+  private static final int MAX_DECISIONS = 10000;
+  private static final int MAX_CACHED_REFS_PER_PUSH = 16;
+  private static final int MAX_SNAPSHOTS = 10000;
+  private static final long DECISION_EXPIRATION_IN_MINUTES = 5;
+  private static final int WRITE_LOCK_STRIPES = 64;
+  private static final String GLOBAL_LOCK = "global";
+  private static final String NAMESPACE_LOCK_PREFIX = "namespace:";
+
+  /**
+   * Writes of the same repository are serialized, so that incremental changes do not get lost.
+   */
+  private final Striped<Lock> writeLocks = Striped.lock(WRITE_LOCK_STRIPES);
+
+  /**
+   * {@code false} only for benchmarks, which evaluate every ref without the decision and the snapshot cache.
+   */
+  private final boolean caching;
 
   @Inject
-  public BranchWritePermissionService(ConfigurationStoreFactory storeFactory, RepositoryManager repositoryManager, GroupCollector groupCollector) {
-    this.storeFactory = storeFactory;
+  public BranchWritePermissionService(ConfigurationStoreFactory storeFactory, DataStoreFactory dataStoreFactory, BlobStoreFactory blobStoreFactory, RepositoryManager repositoryManager, GroupCollector groupCollector, MeterRegistry meterRegistry) {
+    this(new BranchWritePermissionStore(storeFactory, dataStoreFactory, blobStoreFactory), repositoryManager, groupCollector::collect, meterRegistry, true);
+  }
+
+  BranchWritePermissionService(BranchWritePermissionStore store, RepositoryManager repositoryManager, Function<String, Set<String>> groupCollector, MeterRegistry meterRegistry, boolean caching) {
+    this.caching = caching;
+    this.store = store;
     this.repositoryManager = repositoryManager;
-    this.groupCollector = groupCollector;
+    this.metrics = new BranchWritePermissionMetrics(meterRegistry);
+    this.groupResolver = new GroupResolver(groupCollector, metrics);
+    this.published = metrics.monitor(
+      CacheBuilder.newBuilder()
+        .maximumWeight(MAX_PUBLISHED_WEIGHT)
+        .weigher((String id, Published entry) -> entry.weight())
+        .recordStats()
+        .build(),
+      "published"
+    );
+    this.mergedPermissions = metrics.monitor(
+      CacheBuilder.newBuilder()
+        .maximumSize(MAX_COMPILED_PERMISSIONS)
+        .recordStats()
+        .build(),
+      "merged"
+    );
+    this.namespaceLevels = metrics.monitor(
+      CacheBuilder.newBuilder()
+        .maximumSize(MAX_NAMESPACE_LEVELS)
+        .recordStats()
+        .build(),
+      "namespaces"
+    );
+    this.versions = metrics.monitor(
+      CacheBuilder.newBuilder()
+        .maximumSize(MAX_VERSIONS)
+        .recordStats()
+        .build(),
+      "versions"
+    );
+    this.decisions = metrics.monitor(
+      CacheBuilder.newBuilder()
+        .maximumSize(MAX_DECISIONS)
+        .expireAfterWrite(DECISION_EXPIRATION_IN_MINUTES, TimeUnit.MINUTES)
+        .recordStats()
+        .build(),
+      "decisions"
+    );
+    this.snapshots = metrics.monitor(
+      CacheBuilder.newBuilder()
+        .maximumSize(MAX_SNAPSHOTS)
+        .expireAfterWrite(DECISION_EXPIRATION_IN_MINUTES, TimeUnit.MINUTES)
+        .recordStats()
+        .build(),
+      "snapshots"
+    );
   }
 
   /**
@@ -71,19 +193,120 @@ public class BranchWritePermissionService {
   public boolean isPrivileged(User user, Repository repository, String branch) {
     AssertUtil.assertIsNotNull(user);
 
-    BranchWritePermissions permissions = getPermissions(repository);
-    if (!isPluginEnabled(permissions)) {
+    CompiledBranchWritePermissions permissions = getCompiledPermissions(repository);
+    if (!permissions.isEnabled()) {
       return true;
     }
 
-    Set<String> groups = groupCollector.collect(user.getName());
+    Timer.Sample sample = metrics.start();
+    try {
+      return decide(user, repository, permissions, branch, () -> groupResolver.resolve(user.getName()), true);
+    } finally {
+      metrics.evaluated(sample, repository);
+    }
+  }
+
+  /**
+   * Checks the write permission of the user for all given branches. In contrast to calling
+   * {@link #isPrivileged(User, Repository, String)} for every branch, the configuration and the groups of the user
+   * are resolved only once. The decisions of pushes with more than {@value #MAX_CACHED_REFS_PER_PUSH} refs are not
+   * cached, so that e.g. a single mirror push can not displace the decisions of the everyday pushes.
+   *
+   * @param user
+   * @param repository
+   * @param branches
+   * @throws BranchWritePermissionException with all branches, the user is not permitted to write
+   */
+  public void checkAll(User user, Repository repository, Collection<String> branches) {
+    AssertUtil.assertIsNotNull(user);
 
-    BooleanSupplier userAllowed = () -> hasUserPermission(user, branch, permissions, BranchWritePermission.Type.ALLOW);
-    BooleanSupplier anyUserGroupsAllowed = () -> hasAnyGroupPermission(groups, branch, permissions, BranchWritePermission.Type.ALLOW, user);
-    BooleanSupplier userDenied = () -> hasUserPermission(user, branch, permissions, BranchWritePermission.Type.DENY);
-    BooleanSupplier anyUserGroupsDenied = () -> hasAnyGroupPermission(groups, branch, permissions, BranchWritePermission.Type.DENY, user);
+    if (branches.isEmpty()) {
+      return;
+    }
+    CompiledBranchWritePermissions permissions = getCompiledPermissions(repository);
+    if (!permissions.isEnabled()) {
+      return;
+    }
 
-    return !userDenied.getAsBoolean() && !anyUserGroupsDenied.getAsBoolean() && (userAllowed.getAsBoolean() || anyUserGroupsAllowed.getAsBoolean());
+    Timer.Sample sample = metrics.start();
+    List<String> denied = new ArrayList<>();
+    try {
+      metrics.pushed(branches.size());
+      Supplier<Set<String>> groups = Suppliers.memoize(() -> groupResolver.resolve(user.getName()));
+      boolean cacheDecisions = branches.size() <= MAX_CACHED_REFS_PER_PUSH;
+      for (String branch : branches) {
+        if (!decide(user, repository, permissions, branch, groups, cacheDecisions)) {
+          denied.add(branch);
+        }
+      }
+    } finally {
+      metrics.evaluated(sample, repository);
+    }
+    if (!denied.isEmpty()) {
+      throw new BranchWritePermissionException(repository, denied);
+    }
+  }
+
+  /**
+   * Creates a check of the write permission of the user, which can be used for many branches of the repository,
+   * e.g. for all branches of a large repository. The configuration is resolved only once and the groups of the user
+   * at most once.
+   * The decisions of the check are not cached, because they would displace the decisions of the pushes.
+   *
+   * @param user
+   * @param repository
+   * @return predicate which returns true if the user is permitted to write the branch
+   */
+  public Predicate<String> createPrivilegeCheck(User user, Repository repository) {
+    AssertUtil.assertIsNotNull(user);
+
+    CompiledBranchWritePermissions permissions = getCompiledPermissions(repository);
+    if (!permissions.isEnabled()) {
+      return branch -> true;
+    }
+    Supplier<Set<String>> groups = Suppliers.memoize(() -> groupResolver.resolve(user.getName()));
+    return branch -> decide(user, repository, permissions, branch, groups, false);
+  }
+
+  /**
+   * Decides with the decision cache or, if the decision should not be cached, only with the snapshot of the rules.
+   */
+  private boolean decide(User user, Repository repository, CompiledBranchWritePermissions permissions, String branch, Supplier<Set<String>> groups, boolean cacheDecision) {
+    boolean decision;
+    if (!caching) {
+      decision = permissions.isPrivileged(user, groups, branch);
+    } else if (!cacheDecision) {
+      decision = evaluate(user, repository, permissions, branch, groups);
+    } else {
+      DecisionKey key = new DecisionKey(repository.getId(), permissions.getVersion(), user.getName(), user.getMail(), branch);
+      Boolean cached = decisions.getIfPresent(key);
+      if (cached == null) {
+        cached = evaluate(user, repository, permissions, branch, groups);
+        decisions.put(key, cached);
+      }
+      decision = cached;
+    }
+    metrics.decided(decision);
+    return decision;
+  }
+
+  /**
+   * Decides with the snapshot of the rules, which apply to the user and its groups, if there is one. The snapshot is
+   * kept for a short time, so that e.g. the merge guards of all pull requests of a repository in a list view only
+   * build it once and then only match the target branch of every pull request. Without a snapshot, the groups of the
+   * user are only resolved, if a group rule matches the branch, and the snapshot is built only in this case.
+   */
+  private boolean evaluate(User user, Repository repository, CompiledBranchWritePermissions permissions, String branch, Supplier<Set<String>> groups) {
+    SnapshotKey key = new SnapshotKey(repository.getId(), permissions.getVersion(), user.getName());
+    CompiledBranchWritePermissions.Snapshot snapshot = snapshots.getIfPresent(key);
+    if (snapshot != null) {
+      return snapshot.isPrivileged(user, branch);
+    }
+    return permissions.isPrivileged(user, () -> {
+      Set<String> resolved = groups.get();
+      snapshots.put(key, permissions.snapshot(user, resolved));
+      return resolved;
+    }, branch);
   }
 
   public boolean isPrivileged(User user, NamespaceAndName namespaceAndName, String branch) {
@@ -94,47 +317,59 @@ public class BranchWritePermissionService {
     return RepositoryPermissions.custom(CUSTOM_ACTION, repository).isPermitted();
   }
 
-  private boolean isPluginEnabled(BranchWritePermissions permissions){
-    return permissions.isEnabled();
+  /**
+   * Returns {@code true} if the branch write protection is enabled for the repository, its namespace or globally. The
+   * state is kept in memory for a bounded number of repositories, so that the check does not touch the store for most
+   * of the pushes.
+   */
+  public boolean isPluginEnabled(Repository repository){
+    return getCompiledPermissions(repository).isEnabled();
   }
 
-  public boolean isPluginEnabled(Repository repository){
-    BranchWritePermissions permissions = getPermissions(repository);
-    return isPluginEnabled(permissions);
+  /**
+   * Drops everything which is kept in memory for the repository, including its meters.
+   */
+  public void invalidate(String repositoryId) {
+    published.invalidate(repositoryId);
+    versions.invalidate(repositoryId);
+    invalidateDecisions(repositoryId);
+    removeMeters(repositoryId);
+    store.invalidate(repositoryId);
   }
 
-  public void checkPermission(Repository repository) {
-    RepositoryPermissions.custom(CUSTOM_ACTION, repository).check();
+  /**
+   * Removes the meters of the repository, which are tagged with its namespace and name, e.g. because the repository
+   * has been renamed.
+   */
+  public void removeMeters(String repositoryId) {
+    metrics.removed(repositoryId);
   }
 
-  private boolean hasAnyGroupPermission(Set<String> userGroups, String branch, BranchWritePermissions permissions, BranchWritePermission.Type type, User user) {
-    return permissions.getPermissions().stream()
-      .filter(branchWritePermission -> matchBranch(branch, branchWritePermission, user))
-      .filter(BranchWritePermission::isGroup)
-      .filter(branchWritePermission -> userGroups.contains(branchWritePermission.getName()))
-      .anyMatch(branchWritePermission -> branchWritePermission.getType().equals(type));
+  /**
+   * Drops all cached decisions and group resolutions, e.g. because the membership of a group has changed.
+   */
+  public void invalidateDecisions() {
+    decisions.invalidateAll();
+    snapshots.invalidateAll();
+    groupResolver.invalidateAll();
   }
 
-  private boolean hasUserPermission(User user, String branch, BranchWritePermissions permissions, BranchWritePermission.Type type) {
-    return permissions.getPermissions().stream()
-      .filter(branchWritePermission -> matchBranch(branch, branchWritePermission, user))
-      .filter(branchWritePermission -> !branchWritePermission.isGroup())
-      .filter(branchWritePermission -> user.getName().equals(branchWritePermission.getName()))
-      .anyMatch(branchWritePermission -> branchWritePermission.getType().equals(type));
+  /**
+   * Returns the statistics of the decision cache, which can be used to size the cache.
+   */
+  public CacheStats getDecisionCacheStats() {
+    return decisions.stats();
   }
 
-  private boolean matchBranch(String branch, BranchWritePermission branchWritePermission, User user) {
-    String branchPattern = branchWritePermission.getBranch();
-    if (user != null) {
-      branchPattern = branchPattern.replaceAll(VAR_USERNAME, Strings.nullToEmpty(user.getName()))
-        .replaceAll(VAR_MAIL, Strings.nullToEmpty(user.getMail()));
-    }
-    return GlobUtil.matches(branchPattern, branch);
+  private void invalidateDecisions(String repositoryId) {
+    decisions.asMap().keySet().removeIf(key -> key.repositoryId().equals(repositoryId));
+    snapshots.asMap().keySet().removeIf(key -> key.repositoryId().equals(repositoryId));
   }
 
-  private ConfigurationStore<BranchWritePermissions> getStore(Repository repository) {
-    return storeFactory.withType(BranchWritePermissions.class).withName(STORE_NAME).forRepository(repository).build();
+  public void checkPermission(Repository repository) {
+    RepositoryPermissions.custom(CUSTOM_ACTION, repository).check();
   }
+
   private Repository getRepository(String namespace, String name) {
     return repositoryManager.get(new NamespaceAndName(namespace, name));
   }
@@ -145,14 +380,110 @@ public class BranchWritePermissionService {
     return getPermissions(repository);
   }
 
+  /**
+   * Reads the permissions of the repository. A missing configuration is not persisted, the store is only written by
+   * {@link #setPermissions(Repository, BranchWritePermissions)}.
+   */
   private BranchWritePermissions getPermissions(Repository repository) {
-    ConfigurationStore<BranchWritePermissions> store = getStore(repository);
-    BranchWritePermissions permissions = store.get();
-    if (permissions == null) {
-      permissions = new BranchWritePermissions();
-      store.set(permissions);
+    return store.get(repository.getId()).orElseGet(BranchWritePermissions::new);
+  }
+
+  /**
+   * Returns the version of the permissions of the repository. The version is kept in memory, so that unchanged
+   * permissions can be detected without reading the store.
+   */
+  public String getVersion(String namespace, String name) {
+    Repository repository = getRepository(namespace, name);
+    checkPermission(repository);
+    return load(versions, repository.getId(), () -> getVersion(getPermissions(repository)));
+  }
+
+  /**
+   * Returns the global permissions, which are inherited by all repositories.
+   */
+  public BranchWritePermissions getGlobalPermissions() {
+    ConfigurationPermissions.read(CUSTOM_ACTION).check();
+    return getGlobalLevel().permissionsOrEmpty();
+  }
+
+  /**
+   * Returns which of the inherited permissions of the repository are enabled. Only the state is returned and not the
+   * rules, so that the permission for the repository suffices.
+   */
+  public InheritedPermissions getInheritedPermissions(String namespace, String name) {
+    Repository repository = getRepository(namespace, name);
+    checkPermission(repository);
+    return new InheritedPermissions(getGlobalLevel().isEnabled(), getNamespaceLevel(repository.getNamespace()).isEnabled());
+  }
+
+  public void setGlobalPermissions(BranchWritePermissions permissions) {
+    ConfigurationPermissions.write(CUSTOM_ACTION).check();
+    validate(permissions);
+    Lock lock = writeLocks.get(GLOBAL_LOCK);
+    lock.lock();
+    try {
+      store.setGlobal(permissions);
+      globalLevel = Level.of(permissions);
+      invalidateInherited();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Returns the permissions of the namespace, which are inherited by all repositories of the namespace.
+   */
+  public BranchWritePermissions getNamespacePermissions(String namespace) {
+    ConfigurationPermissions.read(CUSTOM_ACTION).check();
+    return getNamespaceLevel(namespace).permissionsOrEmpty();
+  }
+
+  public void setNamespacePermissions(String namespace, BranchWritePermissions permissions) {
+    ConfigurationPermissions.write(CUSTOM_ACTION).check();
+    validate(permissions);
+    Lock lock = writeLocks.get(NAMESPACE_LOCK_PREFIX + namespace);
+    lock.lock();
+    try {
+      store.setNamespace(namespace, permissions);
+      namespaceLevels.put(namespace, Level.of(permissions));
+      invalidateInherited();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * The inherited permissions affect the compiled permissions of many repositories, which are not known by id, so
+   * everything is dropped. Changes of these permissions are rare compared to the changes of repositories.
+   */
+  private void invalidateInherited() {
+    inheritedGeneration.incrementAndGet();
+    published.invalidateAll();
+    mergedPermissions.invalidateAll();
+    decisions.invalidateAll();
+    snapshots.invalidateAll();
+  }
+
+  private Level getGlobalLevel() {
+    Level level = globalLevel;
+    if (level == null) {
+      // loaded under the lock of the writers, so that a concurrent write is not replaced by the loaded level
+      Lock lock = writeLocks.get(GLOBAL_LOCK);
+      lock.lock();
+      try {
+        if (globalLevel == null) {
+          globalLevel = store.getGlobal().map(Level::of).orElse(Level.NONE);
+        }
+        level = globalLevel;
+      } finally {
+        lock.unlock();
+      }
     }
-    return permissions;
+    return level;
+  }
+
+  private Level getNamespaceLevel(String namespace) {
+    return load(namespaceLevels, namespace, () -> store.getNamespace(namespace).map(Level::of).orElse(Level.NONE));
   }
 
   public void setPermissions(String namespace, String name, BranchWritePermissions permissions) {
@@ -161,8 +492,236 @@ public class BranchWritePermissionService {
   }
 
   public void setPermissions(Repository repository, BranchWritePermissions permissions) {
+    modifyPermissions(repository, null, current -> permissions);
+  }
+
+  /**
+   * Replaces all permissions of the repository.
+   *
+   * @param expectedVersion version of the permissions the change is based on or {@code null} to skip the check
+   * @return the version of the new permissions
+   * @throws ConcurrentModificationException if the permissions have been modified since the expected version
+   */
+  public String setPermissions(String namespace, String name, String expectedVersion, BranchWritePermissions permissions) {
+    return modifyPermissions(getRepository(namespace, name), expectedVersion, current -> permissions);
+  }
+
+  /**
+   * Adds the permission after all other permissions of the repository.
+   *
+   * @param expectedVersion version of the permissions the change is based on or {@code null} to skip the check
+   * @return the version of the modified permissions
+   * @throws ConcurrentModificationException if the permissions have been modified since the expected version
+   */
+  public String addPermission(String namespace, String name, String expectedVersion, BranchWritePermission permission) {
+    return modifyRules(getRepository(namespace, name), expectedVersion, permissions -> permissions.add(permission));
+  }
+
+  /**
+   * Replaces the permission at the given index of the permissions of the repository.
+   *
+   * @param expectedVersion version of the permissions the change is based on or {@code null} to skip the check
+   * @return the version of the modified permissions
+   * @throws ConcurrentModificationException if the permissions have been modified since the expected version
+   * @throws NotFoundException if there is no permission with the given index
+   */
+  public String replacePermission(String namespace, String name, String expectedVersion, int index, BranchWritePermission permission) {
+    Repository repository = getRepository(namespace, name);
+    return modifyRules(repository, expectedVersion, permissions -> permissions.set(checkIndex(repository, permissions, index), permission));
+  }
+
+  /**
+   * Removes the permission at the given index of the permissions of the repository.
+   *
+   * @param expectedVersion version of the permissions the change is based on or {@code null} to skip the check
+   * @return the version of the modified permissions
+   * @throws ConcurrentModificationException if the permissions have been modified since the expected version
+   * @throws NotFoundException if there is no permission with the given index
+   */
+  public String removePermission(String namespace, String name, String expectedVersion, int index) {
+    Repository repository = getRepository(namespace, name);
+    return modifyRules(repository, expectedVersion, permissions -> permissions.remove(checkIndex(repository, permissions, index)));
+  }
+
+  /**
+   * Returns the version of the permissions, which changes whenever the content of the permissions changes.
+   */
+  public static String getVersion(BranchWritePermissions permissions) {
+    return CompiledBranchWritePermissions.version(permissions);
+  }
+
+  private String modifyRules(Repository repository, String expectedVersion, Consumer<List<BranchWritePermission>> modification) {
+    return modifyPermissions(repository, expectedVersion, current -> {
+      // the stored object is never modified, because it might be read concurrently
+      BranchWritePermissions modified = new BranchWritePermissions();
+      modified.setEnabled(current.isEnabled());
+      modified.setPermissions(new ArrayList<>(current.getPermissions()));
+      modification.accept(modified.getPermissions());
+      return modified;
+    });
+  }
+
+  private String modifyPermissions(Repository repository, String expectedVersion, UnaryOperator<BranchWritePermissions> modification) {
     checkPermission(repository);
-    ConfigurationStore<BranchWritePermissions> store = getStore(repository);
-    store.set(permissions);
+    Lock lock = writeLocks.get(repository.getId());
+    lock.lock();
+    try {
+      BranchWritePermissions current = getPermissions(repository);
+      if (expectedVersion != null && !expectedVersion.equals(getVersion(current))) {
+        throw new ConcurrentModificationException(BranchWritePermissions.class, repository.getId());
+      }
+      BranchWritePermissions modified = modification.apply(current);
+      validate(modified);
+      return storePermissions(repository, modified);
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Compiles the regular expressions of the permissions, so that invalid expressions or expressions which exceed the
+   * limits of {@link BranchRegex} are rejected before they are stored and evaluated on every push.
+   *
+   * @throws InvalidBranchPatternException if an expression can not be compiled
+   */
+  private static void validate(BranchWritePermissions permissions) {
+    for (BranchWritePermission permission : permissions.getPermissions()) {
+      if (permission != null && permission.getBranch() != null && permission.getPatternType() == BranchWritePermission.PatternType.REGEX) {
+        try {
+          BranchRegex.compile(permission.getBranch());
+        } catch (PatternSyntaxException ex) {
+          throw new InvalidBranchPatternException(permission.getBranch(), ex);
+        }
+      }
+    }
+  }
+
+  private static int checkIndex(Repository repository, List<BranchWritePermission> permissions, int index) {
+    if (index < 0 || index >= permissions.size()) {
+      throw notFound(entity(BranchWritePermission.class, String.valueOf(index)).in(repository));
+    }
+    return index;
+  }
+
+  private String storePermissions(Repository repository, BranchWritePermissions permissions) {
+    try {
+      store.set(repository.getId(), permissions);
+    } catch (RuntimeException e) {
+      // the store may have been written partially, so the permissions are loaded again on the next access
+      invalidate(repository.getId());
+      throw e;
+    }
+    Level level = Level.of(permissions);
+    long generation = inheritedGeneration.get();
+    published.put(repository.getId(), Published.of(generation, level, merge(repository, level)));
+    invalidateDecisions(repository.getId());
+    versions.put(repository.getId(), level.version());
+    return level.version();
+  }
+
+  private CompiledBranchWritePermissions getCompiledPermissions(Repository repository) {
+    String id = repository.getId();
+    try {
+      Published entry = published.get(id, () -> loadPublished(repository));
+      if (entry.generation() != inheritedGeneration.get()) {
+        published.asMap().remove(id, entry);
+        entry = published.get(id, () -> loadPublished(repository));
+      }
+      return entry.permissions();
+    } catch (ExecutionException e) {
+      throw new IllegalStateException("failed to load branch write permissions of repository " + repository.getId(), e.getCause());
+    }
+  }
+
+  private Published loadPublished(Repository repository) {
+    long generation = inheritedGeneration.get();
+    Timer.Sample sample = metrics.start();
+    try {
+      Level level = store.get(repository.getId()).map(Level::of).orElse(Level.NONE);
+      return Published.of(generation, level, merge(repository, level));
+    } finally {
+      metrics.storeLoaded(sample);
+    }
+  }
+
+  /**
+   * Merges the global, the namespace and the repository permissions. The result is shared between all repositories
+   * with the same versions of the three levels, e.g. all repositories of a namespace without own permissions.
+   */
+  private CompiledBranchWritePermissions merge(Repository repository, Level repositoryLevel) {
+    Level global = getGlobalLevel();
+    Level namespace = getNamespaceLevel(repository.getNamespace());
+    if (!global.isEnabled() && !namespace.isEnabled() && !repositoryLevel.isEnabled()) {
+      return CompiledBranchWritePermissions.DISABLED;
+    }
+    MergeKey key = new MergeKey(global.version(), namespace.version(), repositoryLevel.version());
+    return load(mergedPermissions, key, () -> CompiledBranchWritePermissions.compile(
+      key.toVersion(), global.permissions(), namespace.permissions(), repositoryLevel.permissions()
+    ));
+  }
+
+  /**
+   * Loads a missing value with {@link Cache#get(Object, Callable)}, which only blocks callers of the same key while
+   * the value is loaded, other than {@code computeIfAbsent} of the map view, which holds the lock of a whole segment
+   * during the load. Unchecked exceptions of the loader are rethrown unwrapped.
+   */
+  private static <K, V> V load(Cache<K, V> cache, K key, Callable<V> loader) {
+    try {
+      return cache.get(key, loader);
+    } catch (ExecutionException | UncheckedExecutionException | ExecutionError e) {
+      Throwables.throwIfUnchecked(e.getCause());
+      throw new IllegalStateException("failed to load " + key, e.getCause());
+    }
+  }
+
+  private record DecisionKey(String repositoryId, String version, String username, String mail, String branch) {
+  }
+
+  private record Published(long generation, CompiledBranchWritePermissions permissions, int weight) {
+
+    private static Published of(long generation, Level repositoryLevel, CompiledBranchWritePermissions permissions) {
+      return new Published(generation, permissions, 1 + repositoryLevel.ruleCount());
+    }
+  }
+
+  private record SnapshotKey(String repositoryId, String version, String username) {
+  }
+
+  private record MergeKey(String global, String namespace, String repository) {
+
+    private String toVersion() {
+      return global + "/" + namespace + "/" + repository;
+    }
+  }
+
+  /**
+   * Whether the global permissions and the permissions of the namespace, which are inherited by a repository, are
+   * enabled.
+   */
+  public record InheritedPermissions(boolean global, boolean namespace) {
+  }
+
+  /**
+   * Permissions of one level together with their version. {@link #NONE} stands for a level without permissions.
+   */
+  private record Level(BranchWritePermissions permissions, String version) {
+
+    private static final Level NONE = new Level(null, "none");
+
+    private static Level of(BranchWritePermissions permissions) {
+      return new Level(permissions, getVersion(permissions));
+    }
+
+    private boolean isEnabled() {
+      return permissions != null && permissions.isEnabled();
+    }
+
+    private int ruleCount() {
+      return permissions == null ? 0 : permissions.getPermissions().size();
+    }
+
+    private BranchWritePermissions permissionsOrEmpty() {
+      return permissions == null ? new BranchWritePermissions() : permissions;
+    }
   }
 }
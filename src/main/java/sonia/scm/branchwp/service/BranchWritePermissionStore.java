@@ -0,0 +1,208 @@
+/*
+ * Copyright (c) 2020 - present Cloudogu GmbH
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License as published by the Free
+ * Software Foundation, version 3.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see https://www.gnu.org/licenses/.
+ */
+package sonia.scm.branchwp.service;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import sonia.scm.store.Blob;
+import sonia.scm.store.BlobStore;
+import sonia.scm.store.BlobStoreFactory;
+import sonia.scm.store.ConfigurationStore;
+import sonia.scm.store.ConfigurationStoreFactory;
+import sonia.scm.store.DataStore;
+import sonia.scm.store.DataStoreFactory;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Optional;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * Reads and writes the {@link BranchWritePermissions} of a repository, of a namespace and the global ones. The global
+ * permissions are stored in the global configuration store, the permissions of the namespaces in a data store with
+ * the namespace as id.
+ * <p>
+ * The permissions of a repository are always stored as xml in the configuration store of the
+ * repository, which stays the format for the import and the export of repositories. If the binary
+ * format is enabled with the system property {@value #BINARY_FORMAT_PROPERTY}, the permissions are written to a
+ * blob with the {@link BranchWritePermissionsCodec} as well and are read from this blob, as long as it exists and is
+ * readable. Every repository with a blob is marked with a {@link BinaryFormatMarker} in its configuration store. If
+ * the binary format is disabled, the blob of a marked repository is removed on write, so that it can never be out of
+ * date, when the format is enabled again; the blob store of a repository without marker is never touched.
+ */
+final class BranchWritePermissionStore {
+
+  static final String STORE_NAME = "branchWritePermission";
+  static final String GLOBAL_STORE_NAME = "branchWritePermissionGlobal";
+  static final String NAMESPACE_STORE_NAME = "branchWritePermissionNamespace";
+  static final String BINARY_MARKER_STORE_NAME = "branchWritePermissionBinary";
+  static final String BINARY_FORMAT_PROPERTY = "scm.branchwp.binaryStore";
+
+  private static final Logger LOG = LoggerFactory.getLogger(BranchWritePermissionStore.class);
+
+  private static final String BLOB_ID = "permissions";
+  private static final int BUFFER_SIZE = 64 * 1024;
+  private static final int MAX_BLOB_STORES = 1000;
+
+  private final ConfigurationStoreFactory configurationStoreFactory;
+  private final DataStoreFactory dataStoreFactory;
+  private final BlobStoreFactory blobStoreFactory;
+  private final boolean binary;
+  private final Cache<String, BlobStore> blobStores = CacheBuilder.newBuilder()
+    .maximumSize(MAX_BLOB_STORES)
+    .build();
+
+  BranchWritePermissionStore(ConfigurationStoreFactory configurationStoreFactory, DataStoreFactory dataStoreFactory, BlobStoreFactory blobStoreFactory) {
+    this(configurationStoreFactory, dataStoreFactory, blobStoreFactory, Boolean.getBoolean(BINARY_FORMAT_PROPERTY));
+  }
+
+  BranchWritePermissionStore(ConfigurationStoreFactory configurationStoreFactory, DataStoreFactory dataStoreFactory, BlobStoreFactory blobStoreFactory, boolean binary) {
+    this.configurationStoreFactory = configurationStoreFactory;
+    this.dataStoreFactory = dataStoreFactory;
+    this.blobStoreFactory = blobStoreFactory;
+    this.binary = binary && blobStoreFactory != null;
+  }
+
+  Optional<BranchWritePermissions> getGlobal() {
+    return getGlobalStore().getOptional();
+  }
+
+  void setGlobal(BranchWritePermissions permissions) {
+    getGlobalStore().set(permissions);
+  }
+
+  Optional<BranchWritePermissions> getNamespace(String namespace) {
+    if (dataStoreFactory == null) {
+      return Optional.empty();
+    }
+    return Optional.ofNullable(getNamespaceStore().get(namespace));
+  }
+
+  void setNamespace(String namespace, BranchWritePermissions permissions) {
+    getNamespaceStore().put(namespace, permissions);
+  }
+
+  Optional<BranchWritePermissions> get(String repositoryId) {
+    if (binary) {
+      Optional<BranchWritePermissions> permissions = readBinary(repositoryId);
+      if (permissions.isPresent()) {
+        return permissions;
+      }
+    }
+    return getConfigurationStore(repositoryId).getOptional();
+  }
+
+  void set(String repositoryId, BranchWritePermissions permissions) {
+    getConfigurationStore(repositoryId).set(permissions);
+    if (binary) {
+      writeBinary(repositoryId, permissions);
+    } else if (blobStoreFactory != null) {
+      removeStaleBinary(repositoryId);
+    }
+  }
+
+  /**
+   * Forgets the blob store of the repository, e.g. after the repository has been deleted.
+   */
+  void invalidate(String repositoryId) {
+    blobStores.invalidate(repositoryId);
+  }
+
+  private Optional<BranchWritePermissions> readBinary(String repositoryId) {
+    Optional<Blob> blob = getBlobStore(repositoryId).getOptional(BLOB_ID);
+    if (blob.isEmpty()) {
+      return Optional.empty();
+    }
+    try (InputStream input = new BufferedInputStream(blob.get().getInputStream(), BUFFER_SIZE)) {
+      return Optional.of(BranchWritePermissionsCodec.read(input));
+    } catch (IOException e) {
+      LOG.warn("could not read binary branch write permissions of repository {}, falling back to xml", repositoryId, e);
+      return Optional.empty();
+    }
+  }
+
+  /**
+   * Writes the blob. The xml has already been written at this point and is the authoritative copy, so a failure is
+   * only logged and an incomplete blob is removed, which must not hide the xml.
+   */
+  private void writeBinary(String repositoryId, BranchWritePermissions permissions) {
+    ConfigurationStore<BinaryFormatMarker> marker = getMarkerStore(repositoryId);
+    if (marker.getOptional().isEmpty()) {
+      // the marker is written before the blob, so that no blob can exist without it
+      marker.set(new BinaryFormatMarker());
+    }
+    BlobStore store = getBlobStore(repositoryId);
+    try {
+      Blob blob = store.getOptional(BLOB_ID).orElseGet(() -> store.create(BLOB_ID));
+      try (OutputStream output = new BufferedOutputStream(blob.getOutputStream(), BUFFER_SIZE)) {
+        BranchWritePermissionsCodec.write(permissions, output);
+      }
+      blob.commit();
+    } catch (IOException | RuntimeException e) {
+      LOG.warn("could not write binary branch write permissions of repository {}, removing blob", repositoryId, e);
+      removeBinary(repositoryId, store);
+    }
+  }
+
+  private void removeStaleBinary(String repositoryId) {
+    ConfigurationStore<BinaryFormatMarker> marker = getMarkerStore(repositoryId);
+    if (marker.getOptional().isPresent()) {
+      BlobStore store = getBlobStore(repositoryId);
+      if (store.getOptional(BLOB_ID).isPresent()) {
+        removeBinary(repositoryId, store);
+      }
+      marker.delete();
+      blobStores.invalidate(repositoryId);
+    }
+  }
+
+  private void removeBinary(String repositoryId, BlobStore store) {
+    try {
+      store.remove(BLOB_ID);
+    } catch (RuntimeException e) {
+      LOG.error("could not remove binary branch write permissions of repository {}, it may be out of date", repositoryId, e);
+    }
+  }
+
+  private ConfigurationStore<BranchWritePermissions> getConfigurationStore(String repositoryId) {
+    return configurationStoreFactory.withType(BranchWritePermissions.class).withName(STORE_NAME).forRepository(repositoryId).build();
+  }
+
+  private ConfigurationStore<BinaryFormatMarker> getMarkerStore(String repositoryId) {
+    return configurationStoreFactory.withType(BinaryFormatMarker.class).withName(BINARY_MARKER_STORE_NAME).forRepository(repositoryId).build();
+  }
+
+  private ConfigurationStore<BranchWritePermissions> getGlobalStore() {
+    return configurationStoreFactory.withType(BranchWritePermissions.class).withName(GLOBAL_STORE_NAME).build();
+  }
+
+  private DataStore<BranchWritePermissions> getNamespaceStore() {
+    return dataStoreFactory.withType(BranchWritePermissions.class).withName(NAMESPACE_STORE_NAME).build();
+  }
+
+  private BlobStore getBlobStore(String repositoryId) {
+    try {
+      return blobStores.get(repositoryId, () -> blobStoreFactory.withName(STORE_NAME).forRepository(repositoryId).build());
+    } catch (ExecutionException e) {
+      throw new IllegalStateException("could not build blob store of repository " + repositoryId, e.getCause());
+    }
+  }
+}
@@ -0,0 +1,216 @@
+/*
+ * Copyright (c) 2020 - present Cloudogu GmbH
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License as published by the Free
+ * Software Foundation, version 3.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see https://www.gnu.org/licenses/.
+ */
+package sonia.scm.branchwp.service;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Compact binary format for {@link BranchWritePermissions}. All names and branch patterns are written once into a
+ * string table and the rules refer to them by their index, so that principals and patterns which are used by many
+ * rules are stored and loaded only once. The format is:
+ *
+ * <pre>
+ * magic (int), format version (byte), enabled (boolean),
+ * string count (varint), strings (varint length + utf-8 bytes),
+ * rule count (varint), rules (branch index + 1 (varint), name index + 1 (varint), flags (byte))
+ * </pre>
+ *
+ * An index of 0 stands for {@code null}. The flags contain the group bit, the type and the pattern type. Files
+ * written before the pattern type was introduced have no pattern type bits and are read with the pattern type
+ * {@code null}.
+ */
+final class BranchWritePermissionsCodec {
+
+  private static final int MAGIC = 0x42575031;
+  private static final byte FORMAT_VERSION = 1;
+
+  private static final int FLAG_GROUP = 1;
+  private static final int FLAG_ALLOW = 2;
+  private static final int FLAG_DENY = 4;
+  private static final int FLAG_REGEX = 8;
+  private static final int FLAG_GLOB = 16;
+
+  private static final int MAX_STRING_LENGTH = 1024 * 1024;
+  private static final int MAX_RULE_COUNT = 1024 * 1024;
+  private static final int MAX_STRING_COUNT = 2 * MAX_RULE_COUNT;
+  private static final int INITIAL_CAPACITY = 1024;
+
+  private BranchWritePermissionsCodec() {
+  }
+
+  static void write(BranchWritePermissions permissions, OutputStream outputStream) throws IOException {
+    if (permissions.getPermissions().size() > MAX_RULE_COUNT) {
+      throw new IOException(permissions.getPermissions().size() + " rules exceed the limit");
+    }
+    Map<String, Integer> indices = new HashMap<>();
+    List<String> strings = new ArrayList<>();
+    for (BranchWritePermission permission : permissions.getPermissions()) {
+      intern(indices, strings, permission.getBranch());
+      intern(indices, strings, permission.getName());
+    }
+
+    DataOutputStream output = new DataOutputStream(outputStream);
+    output.writeInt(MAGIC);
+    output.writeByte(FORMAT_VERSION);
+    output.writeBoolean(permissions.isEnabled());
+    writeVarInt(output, strings.size());
+    for (String string : strings) {
+      byte[] bytes = string.getBytes(StandardCharsets.UTF_8);
+      writeVarInt(output, bytes.length);
+      output.write(bytes);
+    }
+    writeVarInt(output, permissions.getPermissions().size());
+    for (BranchWritePermission permission : permissions.getPermissions()) {
+      writeVarInt(output, index(indices, permission.getBranch()));
+      writeVarInt(output, index(indices, permission.getName()));
+      output.writeByte(flags(permission));
+    }
+    output.flush();
+  }
+
+  static BranchWritePermissions read(InputStream inputStream) throws IOException {
+    DataInputStream input = new DataInputStream(inputStream);
+    if (input.readInt() != MAGIC) {
+      throw new IOException("stream does not contain branch write permissions");
+    }
+    byte version = input.readByte();
+    if (version != FORMAT_VERSION) {
+      throw new IOException("unsupported format version " + version);
+    }
+
+    BranchWritePermissions permissions = new BranchWritePermissions();
+    permissions.setEnabled(input.readBoolean());
+    // the counts are only trusted up to the limits and the lists grow with the content which is actually read,
+    // so that a corrupt count cannot allocate more memory than the stream contains
+    int stringCount = readCount(input, MAX_STRING_COUNT, "strings");
+    List<String> strings = new ArrayList<>(Math.min(stringCount, INITIAL_CAPACITY));
+    for (int i = 0; i < stringCount; i++) {
+      int length = readVarInt(input);
+      if (length > MAX_STRING_LENGTH) {
+        throw new IOException("string of length " + length + " exceeds the limit");
+      }
+      byte[] bytes = new byte[length];
+      input.readFully(bytes);
+      strings.add(new String(bytes, StandardCharsets.UTF_8));
+    }
+    int count = readCount(input, MAX_RULE_COUNT, "rules");
+    List<BranchWritePermission> rules = new ArrayList<>(Math.min(count, INITIAL_CAPACITY));
+    for (int i = 0; i < count; i++) {
+      String branch = string(strings, readVarInt(input));
+      String name = string(strings, readVarInt(input));
+      int flags = input.readUnsignedByte();
+      rules.add(new BranchWritePermission(branch, name, (flags & FLAG_GROUP) != 0, type(flags), patternType(flags)));
+    }
+    permissions.setPermissions(rules);
+    return permissions;
+  }
+
+  private static void intern(Map<String, Integer> indices, List<String> strings, String value) {
+    if (value != null && !indices.containsKey(value)) {
+      indices.put(value, strings.size());
+      strings.add(value);
+    }
+  }
+
+  private static int index(Map<String, Integer> indices, String value) {
+    return value == null ? 0 : indices.get(value) + 1;
+  }
+
+  private static String string(List<String> strings, int index) throws IOException {
+    if (index == 0) {
+      return null;
+    }
+    if (index > strings.size()) {
+      throw new IOException("invalid string index " + index);
+    }
+    return strings.get(index - 1);
+  }
+
+  private static int flags(BranchWritePermission permission) {
+    int flags = permission.isGroup() ? FLAG_GROUP : 0;
+    if (permission.getType() == BranchWritePermission.Type.ALLOW) {
+      flags |= FLAG_ALLOW;
+    } else if (permission.getType() == BranchWritePermission.Type.DENY) {
+      flags |= FLAG_DENY;
+    }
+    if (permission.getPatternType() == BranchWritePermission.PatternType.REGEX) {
+      flags |= FLAG_REGEX;
+    } else if (permission.getPatternType() == BranchWritePermission.PatternType.GLOB) {
+      flags |= FLAG_GLOB;
+    }
+    return flags;
+  }
+
+  private static BranchWritePermission.Type type(int flags) {
+    if ((flags & FLAG_ALLOW) != 0) {
+      return BranchWritePermission.Type.ALLOW;
+    }
+    if ((flags & FLAG_DENY) != 0) {
+      return BranchWritePermission.Type.DENY;
+    }
+    return null;
+  }
+
+  private static BranchWritePermission.PatternType patternType(int flags) {
+    if ((flags & FLAG_REGEX) != 0) {
+      return BranchWritePermission.PatternType.REGEX;
+    }
+    if ((flags & FLAG_GLOB) != 0) {
+      return BranchWritePermission.PatternType.GLOB;
+    }
+    return null;
+  }
+
+  private static void writeVarInt(DataOutputStream output, int value) throws IOException {
+    while ((value & ~0x7F) != 0) {
+      output.writeByte((value & 0x7F) | 0x80);
+      value >>>= 7;
+    }
+    output.writeByte(value);
+  }
+
+  private static int readCount(DataInputStream input, int limit, String what) throws IOException {
+    int count = readVarInt(input);
+    if (count > limit) {
+      throw new IOException(count + " " + what + " exceed the limit");
+    }
+    return count;
+  }
+
+  private static int readVarInt(DataInputStream input) throws IOException {
+    int value = 0;
+    for (int shift = 0; shift < 32; shift += 7) {
+      int b = input.readUnsignedByte();
+      value |= (b & 0x7F) << shift;
+      if ((b & 0x80) == 0) {
+        if (value < 0) {
+          throw new IOException("negative length or index");
+        }
+        return value;
+      }
+    }
+    throw new IOException("malformed varint");
+  }
+}
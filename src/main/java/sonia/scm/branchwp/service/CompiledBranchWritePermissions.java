@@ -0,0 +1,503 @@
+/*
+ * Copyright (c) 2020 - present Cloudogu GmbH
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License as published by the Free
+ * Software Foundation, version 3.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see https://www.gnu.org/licenses/.
+ */
+
+package sonia.scm.branchwp.service;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import sonia.scm.user.User;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Supplier;
+
+/**
+ * Immutable index of the {@link BranchWritePermissions} of one repository. Every user and group, which is referenced
+ * by a rule, gets an integer id and the rules are split by ALLOW and DENY and held per principal id, so that a
+ * decision only has to look at the rules of the principals involved. The groups with rules are kept as bitsets, so
+ * that the group rules of a user are found by intersecting the bitset of the groups of the user with them. All group
+ * rules are additionally held in one index, so that the groups of a user only have to be resolved, if a group rule
+ * matches the branch. All patterns without placeholders, braces, brackets or escapes are merged into one
+ * {@link BranchAutomaton}, which finds all matching rules with one scan of the branch. The other rules of each
+ * principal, including the regular expressions, are held in a {@link BranchPatternIndex}, so that only rules with a
+ * matching literal prefix are tested. An instance is compiled once for every stored configuration and replaced as a
+ * whole, if the configuration changes. The rules of the global and the namespace permissions are
+ * compiled into the same instance as the rules of the repository.
+ */
+final class CompiledBranchWritePermissions {
+
+  /**
+   * Shared instance for repositories without configuration or with disabled branch write protection.
+   */
+  static final CompiledBranchWritePermissions DISABLED = new CompiledBranchWritePermissions(
+    false, "disabled", Principals.EMPTY, Principals.EMPTY, BranchPatternIndex.<GroupRule>builder().build(),
+    BranchAutomaton.EMPTY, new AutomatonRule[0]
+  );
+
+  private final boolean enabled;
+  private final String version;
+  private final Principals users;
+  private final Principals groups;
+  private final BranchPatternIndex<GroupRule> groupRules;
+  private final BranchAutomaton automaton;
+  private final AutomatonRule[] automatonRules;
+
+  private CompiledBranchWritePermissions(boolean enabled,
+                                         String version,
+                                         Principals users,
+                                         Principals groups,
+                                         BranchPatternIndex<GroupRule> groupRules,
+                                         BranchAutomaton automaton,
+                                         AutomatonRule[] automatonRules) {
+    this.enabled = enabled;
+    this.version = version;
+    this.users = users;
+    this.groups = groups;
+    this.groupRules = groupRules;
+    this.automaton = automaton;
+    this.automatonRules = automatonRules;
+  }
+
+  static CompiledBranchWritePermissions compile(BranchWritePermissions permissions) {
+    if (permissions == null || !permissions.isEnabled()) {
+      return DISABLED;
+    }
+    return compile(version(permissions), permissions);
+  }
+
+  /**
+   * Compiles the rules of all enabled levels, e.g. of the global, the namespace and the repository permissions, into
+   * one index. Levels which are {@code null} or disabled are skipped. If no level is enabled, {@link #DISABLED} is
+   * returned.
+   */
+  static CompiledBranchWritePermissions compile(String version, BranchWritePermissions... levels) {
+    boolean enabled = false;
+    Map<String, PrincipalBuilder> users = new LinkedHashMap<>();
+    Map<String, PrincipalBuilder> groups = new LinkedHashMap<>();
+    BranchPatternIndex.Builder<GroupRule> groupRules = BranchPatternIndex.builder();
+    BranchAutomaton.Builder automaton = BranchAutomaton.builder();
+    List<AutomatonRule> automatonRules = new ArrayList<>();
+
+    for (BranchWritePermissions level : levels) {
+      if (level == null || !level.isEnabled()) {
+        continue;
+      }
+      enabled = true;
+      for (BranchWritePermission permission : level.getPermissions()) {
+        if (permission == null || permission.getName() == null || permission.getBranch() == null || permission.getType() == null) {
+          continue;
+        }
+        Map<String, PrincipalBuilder> principals = permission.isGroup() ? groups : users;
+        // ids are assigned in the order of the first reference of the principal
+        PrincipalBuilder principal = principals.computeIfAbsent(permission.getName(), name -> new PrincipalBuilder(principals.size()));
+        boolean regex = permission.getPatternType() == BranchWritePermission.PatternType.REGEX;
+        if (!regex && BranchAutomaton.supports(permission.getBranch())) {
+          automaton.add(permission.getBranch());
+          automatonRules.add(new AutomatonRule(permission.isGroup(), principal.id, permission.getType() == BranchWritePermission.Type.DENY));
+        } else {
+          index(principal, permission.isGroup(), permission.getType(), permission.getBranch(), regex, groupRules);
+        }
+      }
+    }
+
+    if (!enabled) {
+      return DISABLED;
+    }
+
+    return new CompiledBranchWritePermissions(
+      true, version, Principals.build(users), Principals.build(groups), groupRules.build(), automaton.build(),
+      automatonRules.toArray(new AutomatonRule[0])
+    );
+  }
+
+  private static void index(PrincipalBuilder principal, boolean group, BranchWritePermission.Type type, String branch, boolean regex, BranchPatternIndex.Builder<GroupRule> groupRules) {
+    Rule rule = principal.add(type, branch, regex);
+    if (group) {
+      groupRules.add(rule.literalSegments(), new GroupRule(rule, principal.id, type == BranchWritePermission.Type.DENY));
+    }
+  }
+
+  /**
+   * Computes a version for the given permissions, which changes whenever the content changes.
+   */
+  static String version(BranchWritePermissions permissions) {
+    Hasher hasher = Hashing.murmur3_128().newHasher();
+    hasher.putBoolean(permissions.isEnabled());
+    for (BranchWritePermission permission : permissions.getPermissions()) {
+      if (permission == null) {
+        continue;
+      }
+      putNullable(hasher, permission.getBranch());
+      putNullable(hasher, permission.getName());
+      hasher.putBoolean(permission.isGroup());
+      putNullable(hasher, permission.getType() == null ? null : permission.getType().name());
+      // GLOB and null are the same
+      hasher.putBoolean(permission.getPatternType() == BranchWritePermission.PatternType.REGEX);
+    }
+    return hasher.hash().toString();
+  }
+
+  private static void putNullable(Hasher hasher, String value) {
+    if (value == null) {
+      hasher.putInt(-1);
+    } else {
+      hasher.putInt(value.length());
+      hasher.putString(value, StandardCharsets.UTF_8);
+    }
+  }
+
+  boolean isEnabled() {
+    return enabled;
+  }
+
+  String getVersion() {
+    return version;
+  }
+
+  /**
+   * Returns the number of rules, which are matched by the {@link BranchAutomaton}.
+   */
+  int getAutomatonRuleCount() {
+    return automatonRules.length;
+  }
+
+  /**
+   * Returns {@code true} if neither the user nor one of the groups is denied to write the branch and the user or
+   * one of the groups is allowed to write it.
+   */
+  boolean isPrivileged(User user, Set<String> groups, String branch) {
+    return isPrivileged(user, () -> groups, branch);
+  }
+
+  /**
+   * Decides like {@link #isPrivileged(User, Set, String)}, but the groups of the user are only requested from the
+   * supplier, if a group rule matches the branch. Only the groups of the matching rules are checked for membership.
+   */
+  boolean isPrivileged(User user, Supplier<Set<String>> groupNames, String branch) {
+    int userId = users.idOf(user.getName());
+    BitSet denying = new BitSet();
+    BitSet allowing = new BitSet();
+    boolean userAllowed = false;
+    BitSet matched = automaton.match(branch);
+    for (int id = matched.nextSetBit(0); id >= 0; id = matched.nextSetBit(id + 1)) {
+      AutomatonRule rule = automatonRules[id];
+      if (rule.group()) {
+        (rule.deny() ? denying : allowing).set(rule.principalId());
+      } else if (rule.principalId() == userId) {
+        if (rule.deny()) {
+          return false;
+        }
+        userAllowed = true;
+      }
+    }
+
+    if (userId >= 0 && matches(users.deny[userId], user, branch)) {
+      return false;
+    }
+    if (!groups.isEmpty()) {
+      groupRules.anyMatch(branch, rule -> {
+        if (rule.rule().matches(user, branch)) {
+          (rule.deny() ? denying : allowing).set(rule.groupId());
+        }
+        return false;
+      });
+    }
+
+    Set<String> resolved = null;
+    if (!denying.isEmpty()) {
+      resolved = groupNames.get();
+      if (groups.containsAny(denying, resolved)) {
+        return false;
+      }
+    }
+    if (userAllowed || (userId >= 0 && matches(users.allow[userId], user, branch))) {
+      return true;
+    }
+    if (!allowing.isEmpty()) {
+      if (resolved == null) {
+        resolved = groupNames.get();
+      }
+      return groups.containsAny(allowing, resolved);
+    }
+    return false;
+  }
+
+  private static boolean matches(BranchPatternIndex<Rule> rules, User user, String branch) {
+    return rules != null && matchesAny(rules, user, branch);
+  }
+
+  /**
+   * Collects the rules, which apply to the user or one of the groups, so that many branches can be decided for the
+   * user without looking up the rules of every principal again.
+   */
+  Snapshot snapshot(User user, Set<String> groupNames) {
+    ImmutableList.Builder<BranchPatternIndex<Rule>> allow = ImmutableList.builder();
+    ImmutableList.Builder<BranchPatternIndex<Rule>> deny = ImmutableList.builder();
+    int userId = users.idOf(user.getName());
+    if (userId >= 0) {
+      users.collect(userId, allow, deny);
+    }
+    BitSet memberships = new BitSet();
+    if (!groups.isEmpty() && !groupNames.isEmpty()) {
+      memberships = groups.idsOf(groupNames);
+      groups.collect(memberships, allow, deny);
+    }
+
+    BitSet allowRules = new BitSet();
+    BitSet denyRules = new BitSet();
+    for (int id = 0; id < automatonRules.length; id++) {
+      AutomatonRule rule = automatonRules[id];
+      boolean applies = rule.group() ? memberships.get(rule.principalId()) : rule.principalId() == userId;
+      if (applies) {
+        (rule.deny() ? denyRules : allowRules).set(id);
+      }
+    }
+    return new Snapshot(allow.build(), deny.build(), automaton, allowRules, denyRules);
+  }
+
+  private static boolean matchesAny(BranchPatternIndex<Rule> rules, User user, String branch) {
+    return rules.anyMatch(branch, rule -> rule.matches(user, branch));
+  }
+
+  /**
+   * The effective rules of one user in one repository. The templates of the rules are still resolved with the user on
+   * every decision.
+   */
+  static final class Snapshot {
+
+    private final ImmutableList<BranchPatternIndex<Rule>> allow;
+    private final ImmutableList<BranchPatternIndex<Rule>> deny;
+    private final BranchAutomaton automaton;
+    private final BitSet allowRules;
+    private final BitSet denyRules;
+
+    private Snapshot(ImmutableList<BranchPatternIndex<Rule>> allow,
+                     ImmutableList<BranchPatternIndex<Rule>> deny,
+                     BranchAutomaton automaton,
+                     BitSet allowRules,
+                     BitSet denyRules) {
+      this.allow = allow;
+      this.deny = deny;
+      this.automaton = automaton;
+      this.allowRules = allowRules;
+      this.denyRules = denyRules;
+    }
+
+    boolean isPrivileged(User user, String branch) {
+      BitSet matched = allowRules.isEmpty() && denyRules.isEmpty() ? null : automaton.match(branch);
+      if ((matched != null && matched.intersects(denyRules)) || matchesAny(deny, user, branch)) {
+        return false;
+      }
+      return (matched != null && matched.intersects(allowRules)) || matchesAny(allow, user, branch);
+    }
+
+    private static boolean matchesAny(ImmutableList<BranchPatternIndex<Rule>> indices, User user, String branch) {
+      for (BranchPatternIndex<Rule> index : indices) {
+        if (CompiledBranchWritePermissions.matchesAny(index, user, branch)) {
+          return true;
+        }
+      }
+      return false;
+    }
+  }
+
+  /**
+   * The rules of all users or of all groups, held by the integer id of the principal.
+   */
+  private static final class Principals {
+
+    @SuppressWarnings("unchecked")
+    private static final Principals EMPTY = new Principals(
+      ImmutableMap.of(), new String[0], new BranchPatternIndex[0], new BranchPatternIndex[0], new BitSet(), new BitSet()
+    );
+
+    private final ImmutableMap<String, Integer> ids;
+    private final String[] names;
+    private final BranchPatternIndex<Rule>[] allow;
+    private final BranchPatternIndex<Rule>[] deny;
+    private final BitSet withAllow;
+    private final BitSet withDeny;
+
+    private Principals(ImmutableMap<String, Integer> ids, String[] names, BranchPatternIndex<Rule>[] allow, BranchPatternIndex<Rule>[] deny, BitSet withAllow, BitSet withDeny) {
+      this.ids = ids;
+      this.names = names;
+      this.allow = allow;
+      this.deny = deny;
+      this.withAllow = withAllow;
+      this.withDeny = withDeny;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Principals build(Map<String, PrincipalBuilder> builders) {
+      ImmutableMap.Builder<String, Integer> ids = ImmutableMap.builder();
+      String[] names = new String[builders.size()];
+      BranchPatternIndex<Rule>[] allow = new BranchPatternIndex[builders.size()];
+      BranchPatternIndex<Rule>[] deny = new BranchPatternIndex[builders.size()];
+      BitSet withAllow = new BitSet(builders.size());
+      BitSet withDeny = new BitSet(builders.size());
+      for (Map.Entry<String, PrincipalBuilder> entry : builders.entrySet()) {
+        PrincipalBuilder builder = entry.getValue();
+        int id = builder.id;
+        ids.put(entry.getKey(), id);
+        names[id] = entry.getKey();
+        if (builder.allow != null) {
+          allow[id] = builder.allow.build();
+          withAllow.set(id);
+        }
+        if (builder.deny != null) {
+          deny[id] = builder.deny.build();
+          withDeny.set(id);
+        }
+      }
+      return new Principals(ids.build(), names, allow, deny, withAllow, withDeny);
+    }
+
+    private boolean isEmpty() {
+      return ids.isEmpty();
+    }
+
+    private int idOf(String name) {
+      Integer id = ids.get(name);
+      return id == null ? -1 : id;
+    }
+
+    /**
+     * Returns the ids of the given names, which are referenced by a rule. The smaller of both sets is iterated.
+     */
+    private BitSet idsOf(Set<String> names) {
+      BitSet result = new BitSet(ids.size());
+      if (names.size() <= ids.size()) {
+        for (String name : names) {
+          Integer id = ids.get(name);
+          if (id != null) {
+            result.set(id);
+          }
+        }
+      } else {
+        for (Map.Entry<String, Integer> entry : ids.entrySet()) {
+          if (names.contains(entry.getKey())) {
+            result.set(entry.getValue());
+          }
+        }
+      }
+      return result;
+    }
+
+    private boolean containsAny(BitSet principals, Set<String> names) {
+      for (int id = principals.nextSetBit(0); id >= 0; id = principals.nextSetBit(id + 1)) {
+        if (names.contains(this.names[id])) {
+          return true;
+        }
+      }
+      return false;
+    }
+
+    private void collect(int id, ImmutableList.Builder<BranchPatternIndex<Rule>> allowTarget, ImmutableList.Builder<BranchPatternIndex<Rule>> denyTarget) {
+      if (allow[id] != null) {
+        allowTarget.add(allow[id]);
+      }
+      if (deny[id] != null) {
+        denyTarget.add(deny[id]);
+      }
+    }
+
+    private void collect(BitSet members, ImmutableList.Builder<BranchPatternIndex<Rule>> allowTarget, ImmutableList.Builder<BranchPatternIndex<Rule>> denyTarget) {
+      collect(members, withAllow, allow, allowTarget);
+      collect(members, withDeny, deny, denyTarget);
+    }
+
+    private static void collect(BitSet members, BitSet withRules, BranchPatternIndex<Rule>[] rules, ImmutableList.Builder<BranchPatternIndex<Rule>> target) {
+      BitSet applicable = (BitSet) members.clone();
+      applicable.and(withRules);
+      for (int id = applicable.nextSetBit(0); id >= 0; id = applicable.nextSetBit(id + 1)) {
+        target.add(rules[id]);
+      }
+    }
+  }
+
+  private static final class PrincipalBuilder {
+
+    private final int id;
+    private BranchPatternIndex.Builder<Rule> allow;
+    private BranchPatternIndex.Builder<Rule> deny;
+
+    private PrincipalBuilder(int id) {
+      this.id = id;
+    }
+
+    private Rule add(BranchWritePermission.Type type, String branch, boolean regex) {
+      Rule rule = new Rule(branch, regex);
+      if (type == BranchWritePermission.Type.ALLOW) {
+        if (allow == null) {
+          allow = BranchPatternIndex.builder();
+        }
+        allow.add(rule.literalSegments(), rule);
+      } else {
+        if (deny == null) {
+          deny = BranchPatternIndex.builder();
+        }
+        deny.add(rule.literalSegments(), rule);
+      }
+      return rule;
+    }
+  }
+
+  private record GroupRule(Rule rule, int groupId, boolean deny) {
+  }
+
+  /**
+   * Principal of the pattern with the same id in the {@link BranchAutomaton}.
+   */
+  private record AutomatonRule(boolean group, int principalId, boolean deny) {
+  }
+
+  private static final class Rule {
+
+    private final BranchPatternTemplate template;
+    private final BranchMatcher matcher;
+    private final List<String> literalSegments;
+
+    private Rule(String branchPattern, boolean regex) {
+      if (regex) {
+        // regular expressions do not support placeholders, because braces are used for repetitions
+        this.template = null;
+        this.matcher = BranchMatcher.compileRegex(branchPattern);
+      } else {
+        this.template = BranchPatternTemplate.parse(branchPattern);
+        this.matcher = template == null ? BranchMatcher.compile(branchPattern) : null;
+      }
+      this.literalSegments = matcher != null ? matcher.literalSegments(branchPattern) : BranchPatternIndex.literalSegments(branchPattern);
+    }
+
+    private List<String> literalSegments() {
+      return literalSegments;
+    }
+
+    private boolean matches(User user, String branch) {
+      if (template != null) {
+        return template.matches(user, branch);
+      }
+      return matcher.matches(branch);
+    }
+  }
+}
@@ -0,0 +1,79 @@
+/*
+ * Copyright (c) 2020 - present Cloudogu GmbH
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License as published by the Free
+ * Software Foundation, version 3.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see https://www.gnu.org/licenses/.
+ */
+
+package sonia.scm.branchwp.service;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import io.micrometer.core.instrument.Timer;
+import org.apache.shiro.subject.Subject;
+import org.apache.shiro.util.ThreadContext;
+import sonia.scm.group.GroupCollector;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+/**
+ * Resolves the groups of a user with the {@link GroupCollector} and remembers the result for the subject of the
+ * current request. The guards and the repository hook evaluate the same user several times during one request,
+ * but only the first evaluation has to pay for the group resolution. Subjects are held weakly and only for a short
+ * time, because a new subject is created for every request.
+ */
+final class GroupResolver {
+
+  private static final int MAX_SUBJECTS = 10000;
+  private static final long EXPIRATION_IN_SECONDS = 30;
+
+  private final Function<String, Set<String>> groupCollector;
+  private final BranchWritePermissionMetrics metrics;
+  private final Cache<Subject, Map<String, Set<String>>> groupsBySubject = CacheBuilder.newBuilder()
+    .weakKeys()
+    .maximumSize(MAX_SUBJECTS)
+    .expireAfterWrite(EXPIRATION_IN_SECONDS, TimeUnit.SECONDS)
+    .build();
+
+  GroupResolver(Function<String, Set<String>> groupCollector, BranchWritePermissionMetrics metrics) {
+    this.groupCollector = groupCollector;
+    this.metrics = metrics;
+  }
+
+  Set<String> resolve(String username) {
+    Subject subject = ThreadContext.getSubject();
+    if (subject == null) {
+      return collect(username);
+    }
+    Map<String, Set<String>> groups = groupsBySubject.asMap().computeIfAbsent(subject, s -> new ConcurrentHashMap<>());
+    return groups.computeIfAbsent(username, this::collect);
+  }
+
+  void invalidateAll() {
+    groupsBySubject.invalidateAll();
+  }
+
+  private Set<String> collect(String username) {
+    Timer.Sample sample = metrics.start();
+    try {
+      Set<String> groups = groupCollector.apply(username);
+      return groups != null ? groups : Collections.emptySet();
+    } finally {
+      metrics.groupsResolved(sample);
+    }
+  }
+}
@@ -17,10 +17,11 @@
 package sonia.scm.branchwp.update;
 
 import com.google.common.base.Strings;
+import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.google.inject.Inject;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import sonia.scm.branchwp.service.BranchWritePermission;
 import sonia.scm.branchwp.service.BranchWritePermissions;
 import sonia.scm.migration.UpdateStep;
 import sonia.scm.plugin.Extension;
@@ -33,13 +34,23 @@ import sonia.scm.version.Version;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Optional;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import static java.util.Optional.empty;
 import static java.util.Optional.of;
-import static sonia.scm.branchwp.service.BranchWritePermission.Type;
 import static sonia.scm.update.V1PropertyReader.REPOSITORY_PROPERTY_READER;
 import static sonia.scm.version.Version.parse;
 
+/**
+ * Migrates the repository specific configurations of v1. The repositories are migrated in batches on a bounded pool of
+ * workers, which has at most one batch per worker in flight. The position up to which all repositories have been
+ * migrated is stored as checkpoint, so that an interrupted migration continues with the remaining repositories. The
+ * checkpoint is removed, when the migration is complete.
+ */
 @Extension
 public class BranchWPV2RepositoryConfigMigrationUpdateStep implements UpdateStep {
 
@@ -47,25 +58,122 @@ public class BranchWPV2RepositoryConfigMigrationUpdateStep implements UpdateStep
 
   private final V1PropertyDAO v1PropertyDAO;
   private final ConfigurationStoreFactory storeFactory;
+  private final int threads;
+  private final int batchSize;
 
   private static final String BRANCHWP_ENABLED = "branchwp.enabled";
   private static final String BRANCHWP_PERMISSIONS = "branchwp.permissions";
 
   private static final String STORE_NAME = "branchWritePermission";
+  private static final String CHECKPOINT_STORE_NAME = "branchWritePermissionMigration";
+
+  private static final int MAX_THREADS = 8;
+  private static final int BATCH_SIZE = 500;
 
   @Inject
   public BranchWPV2RepositoryConfigMigrationUpdateStep(V1PropertyDAO v1PropertyDAO, ConfigurationStoreFactory storeFactory) {
+    this(v1PropertyDAO, storeFactory, Math.min(Runtime.getRuntime().availableProcessors(), MAX_THREADS), BATCH_SIZE);
+  }
+
+  BranchWPV2RepositoryConfigMigrationUpdateStep(V1PropertyDAO v1PropertyDAO, ConfigurationStoreFactory storeFactory, int threads, int batchSize) {
     this.v1PropertyDAO = v1PropertyDAO;
     this.storeFactory = storeFactory;
+    this.threads = threads;
+    this.batchSize = batchSize;
   }
 
   @Override
   public void doUpdate() {
+    List<Migration> migrations = new ArrayList<>();
     v1PropertyDAO
       .getProperties(REPOSITORY_PROPERTY_READER)
       .havingAnyOf(BRANCHWP_ENABLED, BRANCHWP_PERMISSIONS)
-      .forEachEntry((key, properties) -> buildConfig(key, properties).ifPresent(configuration ->
-        createConfigStore(key).set(configuration)));
+      .forEachEntry((key, properties) -> migrations.add(new Migration(key, properties)));
+
+    ConfigurationStore<MigrationCheckpoint> checkpointStore = createCheckpointStore();
+    int position = resumePosition(checkpointStore.getOptional().orElseGet(MigrationCheckpoint::new), migrations);
+    migrate(migrations, position, checkpointStore);
+    checkpointStore.delete();
+  }
+
+  /**
+   * Returns the position of the first repository, which has not been migrated. The v1 properties are read in the same
+   * order on every start, the last migrated repository of the checkpoint is compared nevertheless, so that a
+   * checkpoint which does not fit the properties starts the migration from the beginning.
+   */
+  private static int resumePosition(MigrationCheckpoint checkpoint, List<Migration> migrations) {
+    int position = checkpoint.getMigrated();
+    if (position == 0) {
+      return 0;
+    }
+    if (position <= migrations.size() && migrations.get(position - 1).repositoryId().equals(checkpoint.getLastMigrated())) {
+      LOG.info("resuming migration of branchwp configurations, {} repositories have already been migrated", position);
+      return position;
+    }
+    LOG.warn("checkpoint of branchwp migration does not match the v1 configurations, migrating all repositories");
+    return 0;
+  }
+
+  private void migrate(List<Migration> migrations, int position, ConfigurationStore<MigrationCheckpoint> checkpointStore) {
+    List<List<Migration>> batches = Lists.partition(migrations.subList(position, migrations.size()), batchSize);
+    ExecutorService executor = Executors.newFixedThreadPool(
+      threads, new ThreadFactoryBuilder().setNameFormat("branchwp-migration-%d").setDaemon(true).build()
+    );
+    try {
+      CompletionService<Integer> completionService = new ExecutorCompletionService<>(executor);
+      int submitted = 0;
+      while (submitted < Math.min(threads, batches.size())) {
+        submit(completionService, batches, submitted++);
+      }
+
+      // batches complete in any order, the checkpoint only moves over the leading batches which are all complete
+      boolean[] completed = new boolean[batches.size()];
+      int cursor = 0;
+      for (int i = 0; i < batches.size(); i++) {
+        completed[completionService.take().get()] = true;
+        if (submitted < batches.size()) {
+          submit(completionService, batches, submitted++);
+        }
+        int previous = cursor;
+        while (cursor < batches.size() && completed[cursor]) {
+          cursor++;
+        }
+        if (cursor > previous) {
+          int migrated = position + Math.min(cursor * batchSize, migrations.size() - position);
+          checkpointStore.set(new MigrationCheckpoint(migrated, migrations.get(migrated - 1).repositoryId()));
+          LOG.info("migrated branchwp configurations of {} of {} repositories", migrated, migrations.size());
+        }
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IllegalStateException("migration of branchwp configurations was interrupted", e);
+    } catch (ExecutionException e) {
+      throw new IllegalStateException("failed to migrate branchwp configurations", e.getCause());
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  /**
+   * Submits the batch with the given index. The stores are created on the calling thread, when the batch is submitted,
+   * the workers only parse and write.
+   */
+  private void submit(CompletionService<Integer> completionService, List<List<Migration>> batches, int index) {
+    List<Migration> batch = batches.get(index);
+    List<ConfigurationStore<BranchWritePermissions>> stores = batch.stream()
+      .map(migration -> createConfigStore(migration.repositoryId()))
+      .toList();
+    completionService.submit(() -> {
+      migrateBatch(batch, stores);
+      return index;
+    });
+  }
+
+  private void migrateBatch(List<Migration> batch, List<ConfigurationStore<BranchWritePermissions>> stores) {
+    for (int i = 0; i < batch.size(); i++) {
+      Migration migration = batch.get(i);
+      buildConfig(migration.repositoryId(), migration.properties()).ifPresent(stores.get(i)::set);
+    }
   }
 
   private Optional<BranchWritePermissions> buildConfig(String repositoryId, V1Properties properties) {
@@ -76,35 +184,21 @@ public class BranchWPV2RepositoryConfigMigrationUpdateStep implements UpdateStep
       return empty();
     }
 
-    String[] splitV1Permissions = v1Permissions.split(";");
-
-    List<BranchWritePermission> mappedPermissions = new ArrayList<>();
-    for (String v1Permission : splitV1Permissions) {
-      mappedPermissions.add(createV2Permission(v1Permission));
-    }
-
     BranchWritePermissions v2Permissions = new BranchWritePermissions();
     v2Permissions.setEnabled(Boolean.parseBoolean(properties.get(BRANCHWP_ENABLED)));
-    v2Permissions.setPermissions(mappedPermissions);
+    v2Permissions.setPermissions(V1PermissionParser.parse(v1Permissions));
 
     return of(v2Permissions);
   }
 
-  private BranchWritePermission createV2Permission(String v1Permission) {
-    String[] splittedV1Permission = v1Permission.split(",");
-
-    String branch = splittedV1Permission[0].replaceAll("!","");
-    String name = splittedV1Permission[1].replaceAll("@","");
-    boolean group = splittedV1Permission[1].contains("@");
-    Type type = splittedV1Permission[0].contains("!") ? Type.DENY : Type.ALLOW;
-
-    return new BranchWritePermission(branch, name, group, type);
-  }
-
   private ConfigurationStore<BranchWritePermissions> createConfigStore(String repositoryId) {
     return storeFactory.withType(BranchWritePermissions.class).withName(STORE_NAME).forRepository(repositoryId).build();
   }
 
+  private ConfigurationStore<MigrationCheckpoint> createCheckpointStore() {
+    return storeFactory.withType(MigrationCheckpoint.class).withName(CHECKPOINT_STORE_NAME).build();
+  }
+
   @Override
   public Version getTargetVersion() {
     return parse("2.0.0");
@@ -114,4 +208,7 @@ public class BranchWPV2RepositoryConfigMigrationUpdateStep implements UpdateStep
   public String getAffectedDataType() {
     return "sonia.scm.branchwp.config.repository.xml";
   }
+
+  private record Migration(String repositoryId, V1Properties properties) {
+  }
 }
@@ -0,0 +1,96 @@
+/*
+ * Copyright (c) 2020 - present Cloudogu GmbH
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License as published by the Free
+ * Software Foundation, version 3.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see https://www.gnu.org/licenses/.
+ */
+
+package sonia.scm.branchwp.update;
+
+import sonia.scm.branchwp.service.BranchWritePermission;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static sonia.scm.branchwp.service.BranchWritePermission.Type;
+
+/**
+ * Parses the v1 format of the branch write permissions ({@code !branch,name;branch,@group;...}) by scanning the indices
+ * of the separators. Only the resulting branch and name strings are allocated. A {@code !} within the branch marks a deny
+ * rule and an {@code @} within the name a group. Entries without a name are skipped.
+ */
+final class V1PermissionParser {
+
+  private static final char ENTRY_SEPARATOR = ';';
+  private static final char NAME_SEPARATOR = ',';
+  private static final char DENY_MARKER = '!';
+  private static final char GROUP_MARKER = '@';
+
+  private V1PermissionParser() {
+  }
+
+  static List<BranchWritePermission> parse(String v1Permissions) {
+    List<BranchWritePermission> permissions = new ArrayList<>();
+    int length = v1Permissions.length();
+    int start = 0;
+    while (start < length) {
+      int end = v1Permissions.indexOf(ENTRY_SEPARATOR, start);
+      if (end < 0) {
+        end = length;
+      }
+      BranchWritePermission permission = parseEntry(v1Permissions, start, end);
+      if (permission != null) {
+        permissions.add(permission);
+      }
+      start = end + 1;
+    }
+    return permissions;
+  }
+
+  private static BranchWritePermission parseEntry(String value, int start, int end) {
+    int separator = value.indexOf(NAME_SEPARATOR, start);
+    if (separator < 0 || separator >= end) {
+      return null;
+    }
+    int nameEnd = value.indexOf(NAME_SEPARATOR, separator + 1);
+    if (nameEnd < 0 || nameEnd > end) {
+      nameEnd = end;
+    }
+    if (nameEnd == separator + 1) {
+      return null;
+    }
+    boolean deny = contains(value, DENY_MARKER, start, separator);
+    boolean group = contains(value, GROUP_MARKER, separator + 1, nameEnd);
+    String branch = substringWithout(value, DENY_MARKER, start, separator, deny);
+    String name = substringWithout(value, GROUP_MARKER, separator + 1, nameEnd, group);
+    return new BranchWritePermission(branch, name, group, deny ? Type.DENY : Type.ALLOW);
+  }
+
+  private static boolean contains(String value, char c, int start, int end) {
+    int index = value.indexOf(c, start);
+    return index >= 0 && index < end;
+  }
+
+  private static String substringWithout(String value, char c, int start, int end, boolean containsChar) {
+    if (!containsChar) {
+      return value.substring(start, end);
+    }
+    StringBuilder builder = new StringBuilder(end - start - 1);
+    for (int i = start; i < end; i++) {
+      char current = value.charAt(i);
+      if (current != c) {
+        builder.append(current);
+      }
+    }
+    return builder.toString();
+  }
+}
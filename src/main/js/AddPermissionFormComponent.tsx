@@ -46,7 +46,8 @@ const defaultState = {
     name: "",
     type: "ALLOW",
     branch: "",
-    group: false
+    group: false,
+    patternType: "GLOB"
   },
   selectedValue: undefined
 };
@@ -66,6 +67,15 @@ class AddPermissionFormComponent extends React.Component<Props, State> {
     });
   };
 
+  handlePatternTypeChange = (patternType: string) => {
+    this.setState({
+      branchProtectionPermission: {
+        ...this.state.branchProtectionPermission,
+        patternType
+      }
+    });
+  };
+
   selectName = (selection: SelectValue) => {
     this.setState({
       branchProtectionPermission: {
@@ -110,7 +120,7 @@ class AddPermissionFormComponent extends React.Component<Props, State> {
   render() {
     const { t, readOnly } = this.props;
     const { branchProtectionPermission } = this.state;
-    const { branch } = branchProtectionPermission;
+    const { branch, patternType } = branchProtectionPermission;
 
     return (
       <>
@@ -139,15 +149,36 @@ class AddPermissionFormComponent extends React.Component<Props, State> {
             </div>
           </div>
           <div className="column is-full">
-            <InputField
-              name={"branch"}
-              placeholder={t("scm-branchwp-plugin.form.branch")}
-              label={t("scm-branchwp-plugin.form.branch")}
-              helpText={t("scm-branchwp-plugin.form.branchHelpText")}
-              value={branch}
-              onChange={this.handleBranchExpressionChange}
-              disabled={readOnly}
-            />
+            <div className="columns">
+              <div className="column">
+                <InputField
+                  name={"branch"}
+                  placeholder={t("scm-branchwp-plugin.form.branch")}
+                  label={t("scm-branchwp-plugin.form.branch")}
+                  helpText={
+                    patternType === "REGEX"
+                      ? t("scm-branchwp-plugin.form.regexHelpText")
+                      : t("scm-branchwp-plugin.form.branchHelpText")
+                  }
+                  value={branch}
+                  onChange={this.handleBranchExpressionChange}
+                  disabled={readOnly}
+                />
+              </div>
+              <div className="column is-narrow">
+                <LabelWithHelpIcon
+                  label={t("scm-branchwp-plugin.form.patternType")}
+                  helpText={t("scm-branchwp-plugin.form.patternTypeHelpText")}
+                />
+                <DropDown
+                  options={[t("scm-branchwp-plugin.form.glob"), t("scm-branchwp-plugin.form.regex")]}
+                  optionValues={["GLOB", "REGEX"]}
+                  optionSelected={this.handlePatternTypeChange}
+                  preselectedOption={patternType}
+                  disabled={readOnly}
+                />
+              </div>
+            </div>
           </div>
           <div className="column">{this.renderAutocomplete()}</div>
           <div className="column">
@@ -178,7 +209,8 @@ class AddPermissionFormComponent extends React.Component<Props, State> {
                         ...defaultState.branchProtectionPermission,
                         branch: branchProtectionPermission.branch,
                         group: branchProtectionPermission.group,
-                        type: branchProtectionPermission.type
+                        type: branchProtectionPermission.type,
+                        patternType: branchProtectionPermission.patternType
                       }
                     });
                   }}
@@ -17,9 +17,11 @@
 import React from "react";
 import { WithTranslation, withTranslation } from "react-i18next";
 import { Checkbox, Subtitle } from "@scm-manager/ui-components";
+import { Link } from "@scm-manager/ui-types";
 import { BranchWPs, BranchWP } from "./types/BranchWP";
 import BranchWPTable from "./table/BranchWPTable";
 import AddPermissionFormComponent from "./AddPermissionFormComponent";
+import InheritedPermissionsNotice from "./InheritedPermissionsNotice";
 
 type Props = WithTranslation & {
   initialConfiguration: BranchWPs;
@@ -108,10 +110,12 @@ class BranchWPsForm extends React.Component<Props, State> {
 
   render() {
     const { enabled } = this.state;
-    const { t } = this.props;
+    const { initialConfiguration, t } = this.props;
+    const inheritedLink = (initialConfiguration._links?.inherited as Link | undefined)?.href;
 
     return (
       <>
+        {inheritedLink ? <InheritedPermissionsNotice link={inheritedLink} /> : null}
         <Checkbox
           checked={enabled}
           onChange={this.onChangeEnabled}
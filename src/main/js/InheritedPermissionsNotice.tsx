@@ -0,0 +1,46 @@
+/*
+ * Copyright (c) 2020 - present Cloudogu GmbH
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License as published by the Free
+ * Software Foundation, version 3.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see https://www.gnu.org/licenses/.
+ */
+
+import React from "react";
+import { useTranslation } from "react-i18next";
+import { useQuery } from "react-query";
+import { apiClient } from "@scm-manager/ui-api";
+import { Notification } from "@scm-manager/ui-components";
+import { InheritedBranchWPs } from "./types/BranchWP";
+
+type Props = {
+  link: string;
+};
+
+const InheritedPermissionsNotice: React.FC<Props> = ({ link }) => {
+  const { t } = useTranslation("plugins");
+  const { data } = useQuery<InheritedBranchWPs, Error>(["branchwp", "inherited", link], () =>
+    apiClient.get(link).then((response) => response.json())
+  );
+
+  if (!data || (!data.global && !data.namespace)) {
+    return null;
+  }
+
+  return (
+    <Notification type="info">
+      {data.global ? <p>{t("scm-branchwp-plugin.inherited.global")}</p> : null}
+      {data.namespace ? <p>{t("scm-branchwp-plugin.inherited.namespace")}</p> : null}
+    </Notification>
+  );
+};
+
+export default InheritedPermissionsNotice;
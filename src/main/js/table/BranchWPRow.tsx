@@ -49,7 +49,10 @@ const BranchWPRow: FC<Props> = ({ permission, onDelete }) => {
       <VCenteredTd>
         {iconType} {permission.name}
       </VCenteredTd>
-      <VCenteredTd>{permission.branch}</VCenteredTd>
+      <VCenteredTd>
+        {permission.branch}
+        {permission.patternType === "REGEX" ? ` (${t("scm-branchwp-plugin.table.regex")})` : null}
+      </VCenteredTd>
       <VCenteredTd>{permission.type}</VCenteredTd>
       <VCenteredTd className="is-darker">
         <Dialog
@@ -14,14 +14,22 @@
  * along with this program. If not, see https://www.gnu.org/licenses/.
  */
 
+import { HalRepresentation } from "@scm-manager/ui-types";
+
 export type BranchWP = {
   branch: string;
   name: string;
   group: boolean;
   type: string;
+  patternType?: string;
 };
 
-export type BranchWPs = {
+export type BranchWPs = HalRepresentation & {
   permissions: BranchWP[];
   enabled: boolean;
 };
+
+export type InheritedBranchWPs = {
+  global: boolean;
+  namespace: boolean;
+};
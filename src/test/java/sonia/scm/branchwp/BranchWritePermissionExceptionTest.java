@@ -0,0 +1,60 @@
+/*
+ * Copyright (c) 2020 - present Cloudogu GmbH
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License as published by the Free
+ * Software Foundation, version 3.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see https://www.gnu.org/licenses/.
+ */
+
+
+package sonia.scm.branchwp;
+
+import org.junit.jupiter.api.Test;
+import sonia.scm.repository.Repository;
+import sonia.scm.repository.RepositoryTestData;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class BranchWritePermissionExceptionTest {
+
+  private static final Repository REPOSITORY = RepositoryTestData.createHeartOfGold();
+
+  @Test
+  void shouldListAllOfFewBranches() {
+    BranchWritePermissionException exception = new BranchWritePermissionException(REPOSITORY, List.of("main", "develop"));
+
+    assertThat(exception.getMessage()).isEqualTo("Permission denied to modify branches main, develop");
+    assertThat(branchId(exception)).isEqualTo("main and 1 more");
+  }
+
+  @Test
+  void shouldLimitBranchesOfLargePush() {
+    List<String> branches = new ArrayList<>();
+    for (int i = 0; i < 5000; i++) {
+      branches.add("tag-" + i);
+    }
+
+    BranchWritePermissionException exception = new BranchWritePermissionException(REPOSITORY, branches);
+
+    assertThat(exception.getMessage())
+      .isEqualTo("Permission denied to modify branches tag-0, tag-1, tag-2, tag-3, tag-4, tag-5, tag-6, tag-7, tag-8, tag-9 and 4990 more");
+    assertThat(branchId(exception)).isEqualTo("tag-0 and 4999 more");
+    assertThat(exception.getBranches()).hasSize(5000);
+  }
+
+  private String branchId(BranchWritePermissionException exception) {
+    // the branch is the innermost entry of the context
+    return exception.getContext().get(exception.getContext().size() - 1).getId();
+  }
+}
@@ -0,0 +1,109 @@
+/*
+ * Copyright (c) 2020 - present Cloudogu GmbH
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License as published by the Free
+ * Software Foundation, version 3.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see https://www.gnu.org/licenses/.
+ */
+
+package sonia.scm.branchwp;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+import sonia.scm.HandlerEventType;
+import sonia.scm.branchwp.service.BranchWritePermissionService;
+import sonia.scm.group.Group;
+import sonia.scm.group.GroupEvent;
+import sonia.scm.repository.Repository;
+import sonia.scm.repository.RepositoryEvent;
+import sonia.scm.repository.RepositoryModificationEvent;
+import sonia.scm.repository.RepositoryTestData;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+
+@ExtendWith(MockitoExtension.class)
+class CacheInvalidationListenerTest {
+
+  private static final Repository REPOSITORY = RepositoryTestData.createHeartOfGold();
+
+  @Mock
+  private BranchWritePermissionService service;
+
+  private CacheInvalidationListener listener;
+
+  @BeforeEach
+  void setUp() {
+    listener = new CacheInvalidationListener(service);
+  }
+
+  @Test
+  void shouldInvalidateDeletedRepository() {
+    listener.onEvent(new RepositoryEvent(HandlerEventType.DELETE, REPOSITORY));
+
+    verify(service).invalidate(REPOSITORY.getId());
+  }
+
+  @Test
+  void shouldIgnoreModifiedRepository() {
+    listener.onEvent(new RepositoryEvent(HandlerEventType.MODIFY, REPOSITORY));
+
+    verify(service, never()).invalidate(any());
+  }
+
+  @Test
+  void shouldInvalidateRepositoryMovedToOtherNamespace() {
+    Repository moved = REPOSITORY.clone();
+    moved.setNamespace("moved");
+
+    listener.onEvent(new RepositoryModificationEvent(HandlerEventType.MODIFY, moved, REPOSITORY));
+
+    verify(service).invalidate(REPOSITORY.getId());
+  }
+
+  @Test
+  void shouldIgnoreRenamedRepositoryInSameNamespace() {
+    Repository renamed = REPOSITORY.clone();
+    renamed.setName("renamed");
+
+    listener.onEvent(new RepositoryModificationEvent(HandlerEventType.MODIFY, renamed, REPOSITORY));
+
+    verify(service, never()).invalidate(any());
+  }
+
+  @Test
+  void shouldRemoveMetersOfRenamedRepository() {
+    Repository renamed = REPOSITORY.clone();
+    renamed.setName("renamed");
+
+    listener.onEvent(new RepositoryModificationEvent(HandlerEventType.MODIFY, renamed, REPOSITORY));
+
+    verify(service).removeMeters(REPOSITORY.getId());
+  }
+
+  @Test
+  void shouldInvalidateDecisionsOnModifiedGroup() {
+    listener.onEvent(new GroupEvent(HandlerEventType.MODIFY, new Group("xml", "developers")));
+
+    verify(service).invalidateDecisions();
+  }
+
+  @Test
+  void shouldNotInvalidateDecisionsBeforeGroupIsModified() {
+    listener.onEvent(new GroupEvent(HandlerEventType.BEFORE_MODIFY, new Group("xml", "developers")));
+
+    verify(service, never()).invalidateDecisions();
+  }
+}
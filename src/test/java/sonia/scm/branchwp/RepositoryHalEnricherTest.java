@@ -39,6 +39,7 @@ import java.net.URI;
 
 import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
@@ -94,9 +95,28 @@ public class RepositoryHalEnricherTest {
     HalEnricherContext context = HalEnricherContext.of(repo);
     enricher.enrich(context, appender);
     verify(appender, never()).appendLink(any(), any());
+    verify(serviceFactory, never()).create(any(Repository.class));
   }
 
   @Test
+  @SubjectAware(username = "admin", password = "secret")
+  public void shouldOpenRepositoryServiceOnlyOncePerType() {
+    enricher = new RepositoryHalEnricher(scmPathInfoStoreProvider, serviceFactory);
+    Repository repo = new Repository("id", "type", "space", "name");
+    Repository otherRepo = new Repository("other", "type", "space", "other");
+    when(serviceFactory.create(repo)).thenReturn(service);
+    when(service.isSupported(Command.BRANCHES)).thenReturn(true);
+
+    enricher.enrich(HalEnricherContext.of(repo), appender);
+    enricher.enrich(HalEnricherContext.of(otherRepo), appender);
+
+    verify(appender).appendLink("branchWpConfig", "https://scm-manager.org/scm/api/v2/plugins/branchwp/space/name");
+    verify(appender).appendLink("branchWpConfig", "https://scm-manager.org/scm/api/v2/plugins/branchwp/space/other");
+    verify(serviceFactory, times(1)).create(any(Repository.class));
+  }
+
+  @Test
+  @SubjectAware(username = "admin", password = "secret")
   public void shouldNotEnrichRepositoryBecauseBranchIsNotSupported() {
     enricher = new RepositoryHalEnricher(scmPathInfoStoreProvider, serviceFactory);
     Repository repo = new Repository("id", "type", "space", "name");
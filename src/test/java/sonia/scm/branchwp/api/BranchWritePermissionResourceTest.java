@@ -16,26 +16,48 @@
 
 package sonia.scm.branchwp.api;
 
+import org.apache.shiro.subject.PrincipalCollection;
+import org.apache.shiro.subject.Subject;
+import org.apache.shiro.util.ThreadContext;
 import org.jboss.resteasy.mock.MockHttpRequest;
 import org.jboss.resteasy.mock.MockHttpResponse;
+import org.junit.jupiter.api.AfterEach;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.Answers;
 import org.mockito.Mock;
 import org.mockito.junit.jupiter.MockitoExtension;
+import sonia.scm.ConcurrentModificationException;
 import sonia.scm.branchwp.service.BranchWritePermission;
 import sonia.scm.branchwp.service.BranchWritePermissionService;
 import sonia.scm.branchwp.service.BranchWritePermissions;
+import sonia.scm.repository.Branch;
+import sonia.scm.repository.Branches;
+import sonia.scm.repository.NamespaceAndName;
+import sonia.scm.repository.Repository;
+import sonia.scm.repository.RepositoryTestData;
+import sonia.scm.repository.api.RepositoryService;
+import sonia.scm.repository.api.RepositoryServiceFactory;
+import sonia.scm.user.User;
+import sonia.scm.user.UserManager;
 import sonia.scm.web.RestDispatcher;
 
 import jakarta.servlet.http.HttpServletResponse;
+import jakarta.ws.rs.core.HttpHeaders;
 import jakarta.ws.rs.core.MediaType;
+import java.io.IOException;
 import java.io.UnsupportedEncodingException;
 import java.net.URISyntaxException;
 
 import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
 import static org.mockito.ArgumentMatchers.argThat;
 import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.ArgumentMatchers.isNull;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
@@ -54,7 +76,9 @@ public class BranchWritePermissionResourceTest {
     "\"self\":{" +
     "\"href\":\"/v2/plugins/branchwp/space/repo\"}," +
     "\"update\":{" +
-    "\"href\":\"/v2/plugins/branchwp/space/repo\"}" +
+    "\"href\":\"/v2/plugins/branchwp/space/repo\"}," +
+    "\"inherited\":{" +
+    "\"href\":\"/v2/plugins/branchwp/space/repo/inherited\"}" +
     "}" +
     "}";
   private BranchWritePermissionResource resource;
@@ -62,6 +86,18 @@ public class BranchWritePermissionResourceTest {
   @Mock
   BranchWritePermissionService service;
 
+  @Mock
+  RepositoryServiceFactory repositoryServiceFactory;
+
+  @Mock(answer = Answers.RETURNS_DEEP_STUBS)
+  RepositoryService repositoryService;
+
+  @Mock
+  UserManager userManager;
+
+  @Mock
+  Subject subject;
+
   private BranchWritePermissionMapper mapper = new BranchWritePermissionMapperImpl();
 
   private RestDispatcher dispatcher;
@@ -70,9 +106,15 @@ public class BranchWritePermissionResourceTest {
 
   @BeforeEach
   public void init() {
-    resource = new BranchWritePermissionResource(service, mapper);
+    resource = new BranchWritePermissionResource(service, mapper, repositoryServiceFactory, userManager);
     dispatcher = new RestDispatcher();
     dispatcher.addSingletonResource(resource);
+    ThreadContext.bind(subject);
+  }
+
+  @AfterEach
+  public void unbindSubject() {
+    ThreadContext.unbindSubject();
   }
 
   @Test
@@ -80,6 +122,7 @@ public class BranchWritePermissionResourceTest {
     BranchWritePermissions permissions = new BranchWritePermissions();
     permissions.setEnabled(true);
     permissions.getPermissions().add(new BranchWritePermission("branch", "user_1", false, BranchWritePermission.Type.ALLOW));
+    when(service.getVersion("space", "repo")).thenReturn("42");
     when(service.getPermissions("space", "repo")).thenReturn(permissions);
 
     MockHttpRequest request = MockHttpRequest
@@ -93,6 +136,55 @@ public class BranchWritePermissionResourceTest {
       .isEqualTo(PERMISSIONS_JSON);
   }
 
+  @Test
+  public void shouldGetFilteredPageOfBranchWritePermissions() throws URISyntaxException, UnsupportedEncodingException {
+    BranchWritePermissions permissions = new BranchWritePermissions();
+    permissions.setEnabled(true);
+    permissions.getPermissions().add(new BranchWritePermission("main", "user_1", false, BranchWritePermission.Type.ALLOW));
+    for (int i = 0; i < 4; i++) {
+      permissions.getPermissions().add(new BranchWritePermission("feature/" + i, "devs", true, BranchWritePermission.Type.ALLOW));
+    }
+    when(service.getVersion("space", "repo")).thenReturn("42");
+    when(service.getPermissions("space", "repo")).thenReturn(permissions);
+
+    MockHttpRequest request = MockHttpRequest
+      .get("/" + BranchWritePermissionResource.PATH + "/space/repo?filter=FEATURE&offset=1&limit=2")
+      .accept(MediaType.APPLICATION_JSON);
+
+    dispatcher.invoke(request, response);
+    assertThat(response.getStatus())
+      .isEqualTo(HttpServletResponse.SC_OK);
+    assertThat(response.getContentAsString())
+      .isEqualTo("{\"permissions\":[" +
+        "{\"branch\":\"feature/1\",\"name\":\"devs\",\"group\":true,\"type\":\"ALLOW\"}," +
+        "{\"branch\":\"feature/2\",\"name\":\"devs\",\"group\":true,\"type\":\"ALLOW\"}" +
+        "]," +
+        "\"enabled\":true," +
+        "\"total\":4," +
+        "\"_links\":{" +
+        "\"self\":{\"href\":\"/v2/plugins/branchwp/space/repo\"}," +
+        "\"update\":{\"href\":\"/v2/plugins/branchwp/space/repo\"}," +
+        "\"inherited\":{\"href\":\"/v2/plugins/branchwp/space/repo/inherited\"}" +
+        "}" +
+        "}");
+  }
+
+  @Test
+  public void shouldGetStateOfInheritedBranchWritePermissions() throws URISyntaxException, UnsupportedEncodingException {
+    when(service.getInheritedPermissions("space", "repo"))
+      .thenReturn(new BranchWritePermissionService.InheritedPermissions(false, true));
+
+    MockHttpRequest request = MockHttpRequest
+      .get("/" + BranchWritePermissionResource.PATH + "/space/repo/inherited")
+      .accept(MediaType.APPLICATION_JSON);
+
+    dispatcher.invoke(request, response);
+    assertThat(response.getStatus())
+      .isEqualTo(HttpServletResponse.SC_OK);
+    assertThat(response.getContentAsString())
+      .isEqualTo("{\"global\":false,\"namespace\":true}");
+  }
+
   @Test
   public void shouldPUTBranchWritePermissions() throws URISyntaxException {
 
@@ -104,7 +196,7 @@ public class BranchWritePermissionResourceTest {
     dispatcher.invoke(request, response);
     assertThat(response.getStatus())
       .isEqualTo(HttpServletResponse.SC_NO_CONTENT);
-    verify(service).setPermissions(eq("space"), eq("repo"), argThat(branchWritePermissions -> {
+    verify(service).setPermissions(eq("space"), eq("repo"), isNull(), argThat(branchWritePermissions -> {
       BranchWritePermissions permissions = new BranchWritePermissions();
       permissions.setEnabled(true);
       permissions.getPermissions().add(new BranchWritePermission("branch", "user_1", false, BranchWritePermission.Type.ALLOW));
@@ -113,4 +205,295 @@ public class BranchWritePermissionResourceTest {
     }));
   }
 
+  @Test
+  public void shouldReturnVersionAsETag() throws URISyntaxException {
+    BranchWritePermissions permissions = new BranchWritePermissions();
+    when(service.getVersion("space", "repo")).thenReturn("42");
+    when(service.getPermissions("space", "repo")).thenReturn(permissions);
+
+    MockHttpRequest request = MockHttpRequest
+      .get("/" + BranchWritePermissionResource.PATH + "/space/repo")
+      .accept(MediaType.APPLICATION_JSON);
+
+    dispatcher.invoke(request, response);
+    assertThat(response.getStatus())
+      .isEqualTo(HttpServletResponse.SC_OK);
+    assertThat(response.getOutputHeaders().getFirst(HttpHeaders.ETAG))
+      .hasToString("\"" + BranchWritePermissionService.getVersion(permissions) + "\"");
+  }
+
+  @Test
+  public void shouldReturnNotModifiedWithoutReadingThePermissions() throws URISyntaxException {
+    when(service.getVersion("space", "repo")).thenReturn("42");
+
+    MockHttpRequest request = MockHttpRequest
+      .get("/" + BranchWritePermissionResource.PATH + "/space/repo")
+      .header(HttpHeaders.IF_NONE_MATCH, "\"42\"")
+      .accept(MediaType.APPLICATION_JSON);
+
+    dispatcher.invoke(request, response);
+    assertThat(response.getStatus())
+      .isEqualTo(HttpServletResponse.SC_NOT_MODIFIED);
+    verify(service, never()).getPermissions("space", "repo");
+  }
+
+  @Test
+  public void shouldPassVersionOfIfMatchHeaderOnPUT() throws URISyntaxException {
+    when(service.setPermissions(eq("space"), eq("repo"), eq("42"), argThat(BranchWritePermissions::isEnabled))).thenReturn("43");
+
+    MockHttpRequest request = MockHttpRequest
+      .put("/" + BranchWritePermissionResource.PATH + "/space/repo")
+      .header(HttpHeaders.IF_MATCH, "\"42\"")
+      .contentType(MediaType.APPLICATION_JSON)
+      .content(PERMISSIONS_JSON.getBytes());
+
+    dispatcher.invoke(request, response);
+    assertThat(response.getStatus())
+      .isEqualTo(HttpServletResponse.SC_NO_CONTENT);
+    assertThat(response.getOutputHeaders().getFirst(HttpHeaders.ETAG)).hasToString("\"43\"");
+  }
+
+  @Test
+  public void shouldAddSinglePermission() throws URISyntaxException {
+    when(service.addPermission(eq("space"), eq("repo"), eq("42"), argThat(permission -> {
+      assertThat(permission.getBranch()).isEqualTo("feature/*");
+      assertThat(permission.getName()).isEqualTo("devs");
+      assertThat(permission.isGroup()).isTrue();
+      assertThat(permission.getType()).isEqualTo(BranchWritePermission.Type.DENY);
+      return true;
+    }))).thenReturn("43");
+
+    MockHttpRequest request = MockHttpRequest
+      .post("/" + BranchWritePermissionResource.PATH + "/space/repo/permissions")
+      .header(HttpHeaders.IF_MATCH, "\"42\"")
+      .contentType(MediaType.APPLICATION_JSON)
+      .content("{\"branch\":\"feature/*\",\"name\":\"devs\",\"group\":true,\"type\":\"DENY\"}".getBytes());
+
+    dispatcher.invoke(request, response);
+    assertThat(response.getStatus())
+      .isEqualTo(HttpServletResponse.SC_NO_CONTENT);
+    assertThat(response.getOutputHeaders().getFirst(HttpHeaders.ETAG)).hasToString("\"43\"");
+  }
+
+  @Test
+  public void shouldPassPatternTypeOfPermission() throws URISyntaxException {
+    when(service.addPermission(eq("space"), eq("repo"), isNull(), argThat(permission -> {
+      assertThat(permission.getBranch()).isEqualTo("release/[0-9]+");
+      assertThat(permission.getPatternType()).isEqualTo(BranchWritePermission.PatternType.REGEX);
+      return true;
+    }))).thenReturn("43");
+
+    MockHttpRequest request = MockHttpRequest
+      .post("/" + BranchWritePermissionResource.PATH + "/space/repo/permissions")
+      .contentType(MediaType.APPLICATION_JSON)
+      .content("{\"branch\":\"release/[0-9]+\",\"name\":\"devs\",\"group\":true,\"type\":\"ALLOW\",\"patternType\":\"REGEX\"}".getBytes());
+
+    dispatcher.invoke(request, response);
+    assertThat(response.getStatus())
+      .isEqualTo(HttpServletResponse.SC_NO_CONTENT);
+  }
+
+  @Test
+  public void shouldReplaceSinglePermissionWithoutVersion() throws URISyntaxException {
+    when(service.replacePermission(eq("space"), eq("repo"), isNull(), eq(2), argThat(permission -> "main".equals(permission.getBranch()))))
+      .thenReturn("43");
+
+    MockHttpRequest request = MockHttpRequest
+      .put("/" + BranchWritePermissionResource.PATH + "/space/repo/permissions/2")
+      .contentType(MediaType.APPLICATION_JSON)
+      .content("{\"branch\":\"main\",\"name\":\"dent\",\"group\":false,\"type\":\"ALLOW\"}".getBytes());
+
+    dispatcher.invoke(request, response);
+    assertThat(response.getStatus())
+      .isEqualTo(HttpServletResponse.SC_NO_CONTENT);
+    assertThat(response.getOutputHeaders().getFirst(HttpHeaders.ETAG)).hasToString("\"43\"");
+  }
+
+  @Test
+  public void shouldRemoveSinglePermission() throws URISyntaxException {
+    when(service.removePermission("space", "repo", "42", 1)).thenReturn("43");
+
+    MockHttpRequest request = MockHttpRequest
+      .delete("/" + BranchWritePermissionResource.PATH + "/space/repo/permissions/1")
+      .header(HttpHeaders.IF_MATCH, "\"42\"");
+
+    dispatcher.invoke(request, response);
+    assertThat(response.getStatus())
+      .isEqualTo(HttpServletResponse.SC_NO_CONTENT);
+    assertThat(response.getOutputHeaders().getFirst(HttpHeaders.ETAG)).hasToString("\"43\"");
+  }
+
+  @Test
+  public void shouldRejectWeakEntityTagInIfMatch() throws URISyntaxException {
+    MockHttpRequest request = MockHttpRequest
+      .delete("/" + BranchWritePermissionResource.PATH + "/space/repo/permissions/1")
+      .header(HttpHeaders.IF_MATCH, "W/\"42\"");
+
+    dispatcher.invoke(request, response);
+    assertThat(response.getStatus())
+      .isEqualTo(HttpServletResponse.SC_PRECONDITION_FAILED);
+    verify(service, never()).removePermission(any(), any(), any(), anyInt());
+  }
+
+  @Test
+  public void shouldFailPreconditionForModifiedVersion() throws URISyntaxException {
+    when(service.removePermission("space", "repo", "41", 1))
+      .thenThrow(new ConcurrentModificationException(BranchWritePermissions.class, "42"));
+
+    MockHttpRequest request = MockHttpRequest
+      .delete("/" + BranchWritePermissionResource.PATH + "/space/repo/permissions/1")
+      .header(HttpHeaders.IF_MATCH, "\"41\"");
+
+    dispatcher.invoke(request, response);
+    assertThat(response.getStatus())
+      .isEqualTo(HttpServletResponse.SC_PRECONDITION_FAILED);
+  }
+
+  @Test
+  public void shouldPassCurrentVersionOfIfMatchList() throws URISyntaxException {
+    when(service.getVersion("space", "repo")).thenReturn("42");
+    when(service.removePermission("space", "repo", "42", 1)).thenReturn("43");
+
+    MockHttpRequest request = MockHttpRequest
+      .delete("/" + BranchWritePermissionResource.PATH + "/space/repo/permissions/1")
+      .header(HttpHeaders.IF_MATCH, "\"41\", W/\"40\", \"4,2\", \"42\"");
+
+    dispatcher.invoke(request, response);
+    assertThat(response.getStatus())
+      .isEqualTo(HttpServletResponse.SC_NO_CONTENT);
+  }
+
+  @Test
+  public void shouldGetWritableBranchesOfOtherUser() throws URISyntaxException, IOException {
+    Repository repository = mockRepositoryWithBranches();
+    User trillian = new User("trillian");
+    when(subject.getPrincipal()).thenReturn("dent");
+    when(userManager.get("trillian")).thenReturn(trillian);
+    when(service.createPrivilegeCheck(trillian, repository)).thenReturn("main"::equals);
+
+    MockHttpRequest request = MockHttpRequest
+      .get("/" + BranchWritePermissionResource.PATH + "/space/repo/writable?user=trillian")
+      .accept(MediaType.APPLICATION_JSON);
+
+    dispatcher.invoke(request, response);
+    assertThat(response.getStatus())
+      .isEqualTo(HttpServletResponse.SC_OK);
+    assertThat(response.getContentAsString())
+      .isEqualTo("{\"user\":\"trillian\",\"branches\":{\"main\":true,\"develop\":false}}");
+    verify(service).checkPermission(repository);
+  }
+
+  @Test
+  public void shouldGetWritableBranchesOfCurrentUser() throws URISyntaxException, IOException {
+    Repository repository = mockRepositoryWithBranches();
+    User dent = new User("dent");
+    PrincipalCollection principals = mock(PrincipalCollection.class);
+    when(subject.getPrincipals()).thenReturn(principals);
+    when(principals.oneByType(User.class)).thenReturn(dent);
+    when(service.createPrivilegeCheck(dent, repository)).thenReturn(branch -> true);
+
+    MockHttpRequest request = MockHttpRequest
+      .get("/" + BranchWritePermissionResource.PATH + "/space/repo/writable")
+      .accept(MediaType.APPLICATION_JSON);
+
+    dispatcher.invoke(request, response);
+    assertThat(response.getStatus())
+      .isEqualTo(HttpServletResponse.SC_OK);
+    assertThat(response.getContentAsString())
+      .isEqualTo("{\"user\":\"dent\",\"branches\":{\"main\":true,\"develop\":true}}");
+    verify(service, never()).checkPermission(repository);
+  }
+
+  @Test
+  public void shouldReturnNotFoundForUnknownUser() throws URISyntaxException {
+    Repository repository = RepositoryTestData.createHeartOfGold();
+    when(repositoryServiceFactory.create(new NamespaceAndName("space", "repo"))).thenReturn(repositoryService);
+    when(repositoryService.getRepository()).thenReturn(repository);
+    when(subject.getPrincipal()).thenReturn("dent");
+
+    MockHttpRequest request = MockHttpRequest
+      .get("/" + BranchWritePermissionResource.PATH + "/space/repo/writable?user=trillian")
+      .accept(MediaType.APPLICATION_JSON);
+
+    dispatcher.invoke(request, response);
+    assertThat(response.getStatus())
+      .isEqualTo(HttpServletResponse.SC_NOT_FOUND);
+  }
+
+  @Test
+  public void shouldGetGlobalBranchWritePermissions() throws URISyntaxException, UnsupportedEncodingException {
+    BranchWritePermissions permissions = new BranchWritePermissions();
+    permissions.setEnabled(true);
+    permissions.getPermissions().add(new BranchWritePermission("main", "admins", true, BranchWritePermission.Type.DENY));
+    when(service.getGlobalPermissions()).thenReturn(permissions);
+
+    MockHttpRequest request = MockHttpRequest
+      .get("/" + BranchWritePermissionResource.PATH + "/")
+      .accept(MediaType.APPLICATION_JSON);
+
+    dispatcher.invoke(request, response);
+    assertThat(response.getStatus())
+      .isEqualTo(HttpServletResponse.SC_OK);
+    assertThat(response.getContentAsString())
+      .startsWith("{\"permissions\":[{\"branch\":\"main\",\"name\":\"admins\",\"group\":true,\"type\":\"DENY\"}],\"enabled\":true,")
+      .contains("\"self\":{\"href\":\"/v2/plugins/branchwp");
+  }
+
+  @Test
+  public void shouldPUTGlobalBranchWritePermissions() throws URISyntaxException {
+    MockHttpRequest request = MockHttpRequest
+      .put("/" + BranchWritePermissionResource.PATH + "/")
+      .contentType(MediaType.APPLICATION_JSON)
+      .content(PERMISSIONS_JSON.getBytes());
+
+    dispatcher.invoke(request, response);
+    assertThat(response.getStatus())
+      .isEqualTo(HttpServletResponse.SC_NO_CONTENT);
+    verify(service).setGlobalPermissions(argThat(permissions -> permissions.isEnabled() && permissions.getPermissions().size() == 1));
+  }
+
+  @Test
+  public void shouldGetNamespaceBranchWritePermissions() throws URISyntaxException, UnsupportedEncodingException {
+    BranchWritePermissions permissions = new BranchWritePermissions();
+    permissions.setEnabled(true);
+    when(service.getNamespacePermissions("space")).thenReturn(permissions);
+
+    MockHttpRequest request = MockHttpRequest
+      .get("/" + BranchWritePermissionResource.PATH + "/space")
+      .accept(MediaType.APPLICATION_JSON);
+
+    dispatcher.invoke(request, response);
+    assertThat(response.getStatus())
+      .isEqualTo(HttpServletResponse.SC_OK);
+    assertThat(response.getContentAsString())
+      .isEqualTo("{\"permissions\":[]," +
+        "\"enabled\":true," +
+        "\"_links\":{" +
+        "\"self\":{\"href\":\"/v2/plugins/branchwp/space\"}," +
+        "\"update\":{\"href\":\"/v2/plugins/branchwp/space\"}" +
+        "}" +
+        "}");
+  }
+
+  @Test
+  public void shouldPUTNamespaceBranchWritePermissions() throws URISyntaxException {
+    MockHttpRequest request = MockHttpRequest
+      .put("/" + BranchWritePermissionResource.PATH + "/space")
+      .contentType(MediaType.APPLICATION_JSON)
+      .content(PERMISSIONS_JSON.getBytes());
+
+    dispatcher.invoke(request, response);
+    assertThat(response.getStatus())
+      .isEqualTo(HttpServletResponse.SC_NO_CONTENT);
+    verify(service).setNamespacePermissions(eq("space"), argThat(permissions -> permissions.isEnabled() && permissions.getPermissions().size() == 1));
+  }
+
+  private Repository mockRepositoryWithBranches() throws IOException {
+    Repository repository = RepositoryTestData.createHeartOfGold();
+    when(repositoryServiceFactory.create(new NamespaceAndName("space", "repo"))).thenReturn(repositoryService);
+    when(repositoryService.getRepository()).thenReturn(repository);
+    when(repositoryService.getBranchesCommand().getBranches())
+      .thenReturn(new Branches(Branch.normalBranch("main", "1"), Branch.normalBranch("develop", "2")));
+    return repository;
+  }
 }
@@ -0,0 +1,141 @@
+/*
+ * Copyright (c) 2020 - present Cloudogu GmbH
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License as published by the Free
+ * Software Foundation, version 3.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see https://www.gnu.org/licenses/.
+ */
+
+package sonia.scm.branchwp.service;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class BranchAutomatonTest {
+
+  private static final String[] PATTERNS = {"main", "release/*", "release/1.*", "*", "v?.0", "*-hotfix", " develop ", "a*b*c"};
+
+  private final BranchAutomaton automaton = build(PATTERNS);
+
+  @Test
+  void shouldReturnAllMatchingPatterns() {
+    assertThat(matches("main")).containsExactly("main", "*");
+    assertThat(matches("release/1.0")).containsExactly("release/*", "release/1.*", "*");
+    assertThat(matches("v1.0")).containsExactly("*", "v?.0");
+    assertThat(matches("v10.0")).containsExactly("*");
+    assertThat(matches("bug-hotfix")).containsExactly("*", "*-hotfix");
+    assertThat(matches("develop")).containsExactly("*", " develop ");
+    assertThat(matches("axxbyyc")).containsExactly("*", "a*b*c");
+    assertThat(matches("")).containsExactly("*");
+  }
+
+  @Test
+  void shouldMatchLikeBranchMatcher() {
+    String[] branches = {"main", "mainline", "release/", "release/1", "v1.0", "v1x0", "a/b/c", "abc", "acb", "x-hotfix-hotfix", "r\u00e4lease"};
+    for (String branch : branches) {
+      BitSet matched = automaton.match(branch);
+      for (int id = 0; id < PATTERNS.length; id++) {
+        assertThat(matched.get(id))
+          .as("pattern %s and branch %s", PATTERNS[id], branch)
+          .isEqualTo(BranchMatcher.compile(PATTERNS[id]).matches(branch));
+      }
+    }
+  }
+
+  @Test
+  void shouldMatchBranchesWithSurrogatesLikeBranchMatcher() {
+    BranchAutomaton single = build("v?");
+
+    assertThat(single.match("v\uD834\uDD1E").get(0)).isTrue();
+    assertThat(single.match("vx\uD834\uDD1E").get(0)).isFalse();
+  }
+
+  @Test
+  void shouldNotSupportComplexGlobs() {
+    assertThat(BranchAutomaton.supports("feature/*")).isTrue();
+    assertThat(BranchAutomaton.supports("{main,develop}")).isFalse();
+    assertThat(BranchAutomaton.supports("release/[0-9]*")).isFalse();
+    assertThat(BranchAutomaton.supports("hot\\*fix")).isFalse();
+    assertThat(BranchAutomaton.supports("{username}/*")).isFalse();
+  }
+
+  @Test
+  void shouldMatchNothingWithoutPatterns() {
+    assertThat(BranchAutomaton.EMPTY.match("main")).isEmpty();
+  }
+
+  @Test
+  void shouldMatchThousandsOfRulesWithBoundedStates() {
+    String[] patterns = realisticPatterns();
+    BranchAutomaton large = build(patterns);
+
+    String[] branches = {"release/1500.0", "release/1500.1", "team4711/feature", "team4711", "x/42/ax", "x/42/abx", "main"};
+    for (String branch : branches) {
+      BitSet matched = large.match(branch);
+      for (int id = 0; id < patterns.length; id++) {
+        assertThat(matched.get(id))
+          .as("pattern %s and branch %s", patterns[id], branch)
+          .isEqualTo(BranchMatcher.compile(patterns[id]).matches(branch));
+      }
+    }
+    assertThat(large.getStateCount() <= BranchAutomaton.MAX_STATES).isTrue();
+  }
+
+  @Test
+  void shouldKeepMatchingAfterTheStatesHaveBeenDropped() {
+    BranchAutomaton.Builder builder = BranchAutomaton.builder();
+    // every pattern remembers a different combination of the already seen characters
+    for (int i = 0; i < 16; i++) {
+      builder.add("*" + (char) ('a' + i) + "????????????");
+    }
+    BranchAutomaton combinations = builder.build();
+
+    for (int i = 0; i < 2000; i++) {
+      String branch = Integer.toString(i * 7919, 16) + "abcdefghijklmnop";
+      assertThat(combinations.match(branch).get(0)).isEqualTo(BranchMatcher.compile("*a????????????").matches(branch));
+    }
+    assertThat(combinations.getStateCount() <= BranchAutomaton.MAX_STATES + 32).isTrue();
+  }
+
+  /**
+   * Literal release branches, one prefix per team and some patterns with a leading wildcard.
+   */
+  static String[] realisticPatterns() {
+    List<String> patterns = new ArrayList<>();
+    for (int i = 0; i < 2000; i++) {
+      patterns.add("release/" + i + ".0");
+    }
+    for (int i = 0; i < 5000; i++) {
+      patterns.add("team" + i + "/*");
+    }
+    for (int i = 0; i < 100; i++) {
+      patterns.add("*/" + i + "/?x");
+    }
+    return patterns.toArray(new String[0]);
+  }
+
+  private BranchAutomaton build(String... patterns) {
+    BranchAutomaton.Builder builder = BranchAutomaton.builder();
+    for (String pattern : patterns) {
+      builder.add(pattern);
+    }
+    return builder.build();
+  }
+
+  private String[] matches(String branch) {
+    return automaton.match(branch).stream().mapToObj(id -> PATTERNS[id]).toArray(String[]::new);
+  }
+}
@@ -0,0 +1,61 @@
+/*
+ * Copyright (c) 2020 - present Cloudogu GmbH
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License as published by the Free
+ * Software Foundation, version 3.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see https://www.gnu.org/licenses/.
+ */
+
+package sonia.scm.branchwp.service;
+
+import org.junit.jupiter.api.Test;
+import sonia.scm.util.GlobUtil;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class BranchMatcherTest {
+
+  private static final String[][] PATTERNS_AND_BRANCHES = {
+    {"main", "main"},
+    {"main", "main2"},
+    {"main", "feature/main"},
+    {"release/1.0", "release/1.0"},
+    {"release/1.0", "release/100"},
+    {"release/*", "release/1.0"},
+    {"release/*", "release/"},
+    {"release/*", "release"},
+    {"release/*", "release/1.0/hotfix"},
+    {"*", "main"},
+    {"*", "feature/a"},
+    {"  develop  ", "develop"},
+    {"feature/*/ui", "feature/x/ui"},
+    {"feature/*/ui", "feature/x/api"},
+    {"v?.0", "v1.0"},
+    {"v?.0", "v10.0"},
+    {"{main,develop}", "develop"},
+    {"{main,develop}", "master"},
+    {"release/[0-9]*", "release/1"},
+    {"release/[0-9]*", "release/x"},
+    {"hot\\*fix", "hot*fix"},
+    {"hot\\*fix", "hotxfix"},
+  };
+
+  @Test
+  void shouldMatchLikeGlobUtil() {
+    for (String[] patternAndBranch : PATTERNS_AND_BRANCHES) {
+      String pattern = patternAndBranch[0];
+      String branch = patternAndBranch[1];
+      assertThat(BranchMatcher.compile(pattern).matches(branch))
+        .as("%s matches %s", pattern, branch)
+        .isEqualTo(GlobUtil.matches(pattern, branch));
+    }
+  }
+}
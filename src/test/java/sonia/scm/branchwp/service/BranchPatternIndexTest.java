@@ -0,0 +1,73 @@
+/*
+ * Copyright (c) 2020 - present Cloudogu GmbH
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License as published by the Free
+ * Software Foundation, version 3.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see https://www.gnu.org/licenses/.
+ */
+package sonia.scm.branchwp.service;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class BranchPatternIndexTest {
+
+  private final BranchPatternIndex<String> index = BranchPatternIndex.<String>builder()
+    .add("main", "main")
+    .add("release/*", "release/*")
+    .add("release/1.*", "release/1.*")
+    .add("feature/{username}/*", "feature/{username}/*")
+    .add("*", "*")
+    .add("a/b/c", "a/b/c")
+    .build();
+
+  @Test
+  void shouldSplitLiteralPrefixIntoSegments() {
+    assertThat(BranchPatternIndex.literalSegments("main")).containsExactly("main");
+    assertThat(BranchPatternIndex.literalSegments("release/*")).containsExactly("release");
+    assertThat(BranchPatternIndex.literalSegments("release/1.*")).containsExactly("release");
+    assertThat(BranchPatternIndex.literalSegments("feature/{username}/*")).containsExactly("feature");
+    assertThat(BranchPatternIndex.literalSegments("*")).isEmpty();
+    assertThat(BranchPatternIndex.literalSegments(" a/b/c ")).containsExactly("a", "b", "c");
+  }
+
+  @Test
+  void shouldVisitOnlyValuesOnThePathOfTheBranch() {
+    assertThat(candidates("release/1.0")).containsExactly("*", "release/*", "release/1.*");
+    assertThat(candidates("main")).containsExactly("*", "main");
+    assertThat(candidates("feature/trillian/x")).containsExactly("*", "feature/{username}/*");
+    assertThat(candidates("a/b/c/d")).containsExactly("*", "a/b/c");
+    assertThat(candidates("develop")).containsExactly("*");
+  }
+
+  @Test
+  void shouldStopAtFirstMatch() {
+    List<String> visited = new ArrayList<>();
+
+    boolean matched = index.anyMatch("release/1.0", value -> {
+      visited.add(value);
+      return value.equals("release/*");
+    });
+
+    assertThat(matched).isTrue();
+    assertThat(visited).containsExactly("*", "release/*");
+  }
+
+  private List<String> candidates(String branch) {
+    List<String> candidates = new ArrayList<>();
+    index.anyMatch(branch, value -> !candidates.add(value));
+    return candidates;
+  }
+}
@@ -0,0 +1,80 @@
+/*
+ * Copyright (c) 2020 - present Cloudogu GmbH
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License as published by the Free
+ * Software Foundation, version 3.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see https://www.gnu.org/licenses/.
+ */
+
+package sonia.scm.branchwp.service;
+
+import org.junit.jupiter.api.Test;
+import sonia.scm.user.User;
+import sonia.scm.util.GlobUtil;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class BranchPatternTemplateTest {
+
+  private static final User TRILLIAN = new User("trillian", "Tricia McMillan", "tricia@hitchhiker.com");
+  private static final User WITHOUT_MAIL = new User("dent", "Arthur Dent", null);
+
+  private static final String[][] PATTERNS_AND_BRANCHES = {
+    {"{username}", "trillian"},
+    {"{username}", "trillian2"},
+    {"{username}/*", "trillian/feature"},
+    {"{username}/*", "trillian"},
+    {"{username}/*", "dent/feature"},
+    {"feature/{username}/*", "feature/trillian/x"},
+    {"feature/{username}/*", "feature/dent/x"},
+    {"{mail}/*", "tricia@hitchhiker.com/x"},
+    {"{mail}/*", "/x"},
+    {"{mail}", ""},
+    {"{username}-{mail}", "trillian-tricia@hitchhiker.com"},
+    {"{username}/*/ui", "trillian/x/ui"},
+    {"{username}/*/ui", "trillian/x/api"},
+    {"{username}/v?", "trillian/v1"},
+    {"  {username}  ", "trillian"},
+  };
+
+  @Test
+  void shouldNotParsePatternsWithoutPlaceholder() {
+    assertThat(BranchPatternTemplate.parse("feature/*")).isNull();
+  }
+
+  @Test
+  void shouldMatchLikeReplacedGlob() {
+    for (User user : new User[]{TRILLIAN, WITHOUT_MAIL}) {
+      for (String[] patternAndBranch : PATTERNS_AND_BRANCHES) {
+        String pattern = patternAndBranch[0];
+        String branch = patternAndBranch[1];
+        assertThat(BranchPatternTemplate.parse(pattern).matches(user, branch))
+          .as("%s matches %s for %s", pattern, branch, user.getName())
+          .isEqualTo(GlobUtil.matches(replace(pattern, user), branch));
+      }
+    }
+  }
+
+  @Test
+  void shouldCompileExpandedPatternOnlyOnce() {
+    BranchPatternTemplate template = BranchPatternTemplate.parse("{username}/*/ui");
+
+    BranchMatcher matcher = template.matcher("trillian", "");
+
+    assertThat(template.matcher("trillian", "")).isSameAs(matcher);
+    assertThat(template.matcher("dent", "")).isNotSameAs(matcher);
+  }
+
+  private String replace(String pattern, User user) {
+    String mail = user.getMail() == null ? "" : user.getMail();
+    return pattern.replace("{username}", user.getName()).replace("{mail}", mail);
+  }
+}
@@ -0,0 +1,112 @@
+/*
+ * Copyright (c) 2020 - present Cloudogu GmbH
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License as published by the Free
+ * Software Foundation, version 3.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see https://www.gnu.org/licenses/.
+ */
+
+
+package sonia.scm.branchwp.service;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class BranchRegexTest {
+
+  private static final String[][] PATTERNS_AND_BRANCHES = {
+    {"main", "main"},
+    {"main", "main2"},
+    {"release/[0-9]+\\.[0-9]+", "release/1.10"},
+    {"release/[0-9]+\\.[0-9]+", "release/1.x"},
+    {"release/[0-9]+\\.[0-9]+", "release/1.10/hotfix"},
+    {"(feature|bugfix)/.*", "bugfix/a"},
+    {"(feature|bugfix)/.*", "hotfix/a"},
+    {"(?:a|b){2,3}", "aba"},
+    {"(?:a|b){2,3}", "abab"},
+    {"v\\d{1,2}(-rc\\d)?", "v12-rc1"},
+    {"v\\d{1,2}(-rc\\d)?", "v123"},
+    {"[^/]+", "main"},
+    {"[^/]+", "feature/a"},
+    {"^\\w+$", "main_2"},
+    {"^\\w+$", "main-2"},
+    {"team/[a-z-]+/\\S*", "team/core-ui/x"},
+    {"a*?b", "aab"},
+    {"", ""},
+    {"x|", ""},
+    {"\u00e4+/\ud83d\ude00.", "\u00e4\u00e4/\ud83d\ude00\ud83d\ude00"},
+  };
+
+  @Test
+  void shouldMatchLikeJavaRegex() {
+    for (String[] patternAndBranch : PATTERNS_AND_BRANCHES) {
+      String pattern = patternAndBranch[0];
+      String branch = patternAndBranch[1];
+      assertThat(BranchRegex.compile(pattern).matches(branch))
+        .as("%s matches %s", pattern, branch)
+        .isEqualTo(Pattern.matches(pattern, branch));
+    }
+  }
+
+  @Test
+  void shouldRejectConstructsWhichRequireBacktracking() {
+    for (String pattern : new String[]{"(a)\\1", "(?=a)a", "(?<!a)b", "a*+", "(?i)main", "\\bmain"}) {
+      assertThatThrownBy(() -> BranchRegex.compile(pattern))
+        .as(pattern)
+        .isInstanceOf(PatternSyntaxException.class);
+    }
+  }
+
+  @Test
+  void shouldRejectInvalidPatterns() {
+    for (String pattern : new String[]{"(main", "main)", "[a-", "[z-a]", "*main", "a{2", "a{3,2}", "\\"}) {
+      assertThatThrownBy(() -> BranchRegex.compile(pattern))
+        .as(pattern)
+        .isInstanceOf(PatternSyntaxException.class);
+    }
+  }
+
+  @Test
+  void shouldRejectPatternsExceedingTheLimits() {
+    String tooLong = "a".repeat(BranchRegex.MAX_PATTERN_LENGTH + 1);
+    String tooManyRepetitions = "a{" + (BranchRegex.MAX_REPETITION + 1) + "}";
+    String tooLargeProgram = "(a{1000}){1000}";
+    String tooDeeplyNested = "(".repeat(BranchRegex.MAX_NESTING + 1) + ")".repeat(BranchRegex.MAX_NESTING + 1);
+
+    for (String pattern : new String[]{tooLong, tooManyRepetitions, tooLargeProgram, tooDeeplyNested}) {
+      assertThatThrownBy(() -> BranchRegex.compile(pattern))
+        .isInstanceOf(PatternSyntaxException.class);
+    }
+  }
+
+  @Test
+  void shouldMatchPathologicalPatternsInLinearTime() {
+    BranchRegex regex = BranchRegex.compile("(a*)*(a|aa)*b");
+    String branch = "a".repeat(100_000);
+
+    // a backtracking engine would not finish this in any reasonable time
+    assertThat(regex.matches(branch)).isFalse();
+  }
+
+  @Test
+  void shouldReturnLiteralSegments() {
+    assertThat(BranchRegex.compile("release/1\\.0/.*").literalSegments()).containsExactly("release", "1.0");
+    assertThat(BranchRegex.compile("^release/1\\.0$").literalSegments()).containsExactly("release", "1.0");
+    assertThat(BranchRegex.compile("release/1*").literalSegments()).containsExactly("release");
+    assertThat(BranchRegex.compile("release|main").literalSegments()).isEqualTo(List.of());
+  }
+}
@@ -19,6 +19,9 @@ package sonia.scm.branchwp.service;
 import com.github.sdorra.shiro.ShiroRule;
 import com.github.sdorra.shiro.SubjectAware;
 import com.google.common.collect.ImmutableSet;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.apache.shiro.authz.AuthorizationException;
 import org.apache.shiro.util.ThreadContext;
 import org.junit.Before;
 import org.junit.Rule;
@@ -26,17 +29,41 @@ import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.mockito.Mock;
 import org.mockito.junit.MockitoJUnitRunner;
+import sonia.scm.ConcurrentModificationException;
+import sonia.scm.NotFoundException;
+import sonia.scm.branchwp.BranchWritePermissionException;
+import sonia.scm.branchwp.InvalidBranchPatternException;
 import sonia.scm.group.GroupCollector;
 import sonia.scm.repository.Repository;
+import sonia.scm.repository.RepositoryManager;
 import sonia.scm.repository.RepositoryTestData;
 import sonia.scm.store.ConfigurationStore;
 import sonia.scm.store.ConfigurationStoreFactory;
 import sonia.scm.store.InMemoryConfigurationStoreFactory;
+import sonia.scm.store.InMemoryDataStoreFactory;
 import sonia.scm.user.User;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Predicate;
+
 import static org.assertj.core.api.Assertions.assertThat;
 import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.RETURNS_DEEP_STUBS;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.lenient;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
+import static sonia.scm.branchwp.service.BranchWritePermission.PatternType.REGEX;
 import static sonia.scm.branchwp.service.BranchWritePermission.Type.ALLOW;
 import static sonia.scm.branchwp.service.BranchWritePermission.Type.DENY;
 
@@ -60,13 +87,18 @@ public class BranchWritePermissionServiceTest {
   @Mock
   GroupCollector groupCollector;
 
+  private MeterRegistry meterRegistry;
+
+  private ConfigurationStoreFactory storeFactory;
+
   private BranchWritePermissionService service;
   private static final Repository REPOSITORY = RepositoryTestData.createHeartOfGold();
 
   @Before
   public void init() {
-    ConfigurationStoreFactory storeFactory = new InMemoryConfigurationStoreFactory();
-    service = new BranchWritePermissionService(storeFactory, null, groupCollector);
+    storeFactory = new InMemoryConfigurationStoreFactory();
+    meterRegistry = new SimpleMeterRegistry();
+    service = new BranchWritePermissionService(storeFactory, new InMemoryDataStoreFactory(), null, null, groupCollector, meterRegistry);
     store = storeFactory.withType(BranchWritePermissions.class).withName("branchWritePermission").forRepository(REPOSITORY).build();
   }
 
@@ -116,7 +148,8 @@ public class BranchWritePermissionServiceTest {
   }
 
   private void assignGroups(String... groups) {
-    when(groupCollector.collect(USER.getName())).thenReturn(ImmutableSet.copyOf(groups));
+    // groups are only resolved, if a group rule matches the branch
+    lenient().when(groupCollector.collect(USER.getName())).thenReturn(ImmutableSet.copyOf(groups));
   }
 
   @Test
@@ -155,6 +188,32 @@ public class BranchWritePermissionServiceTest {
     assertThat(privileged).isTrue();
   }
 
+  @Test
+  @SubjectAware(username = "owner", password = "secret")
+  public void shouldReloadPermissionsIfStoringFailed() {
+    AtomicReference<BranchWritePermissions> stored = new AtomicReference<>(createBranchWPs(true));
+    stored.get().getPermissions().add(createBranchWritePermission());
+    ConfigurationStore<BranchWritePermissions> failingStore = mock(ConfigurationStore.class);
+    when(failingStore.getOptional()).thenAnswer(invocation -> Optional.ofNullable(stored.get()));
+    doAnswer(invocation -> {
+      // the permissions are written, but the store fails afterwards
+      stored.set(invocation.getArgument(0));
+      throw new IllegalStateException("disk full");
+    }).when(failingStore).set(any());
+    ConfigurationStoreFactory failingStoreFactory = mock(ConfigurationStoreFactory.class, RETURNS_DEEP_STUBS);
+    doReturn(failingStore).when(failingStoreFactory.withType(BranchWritePermissions.class).withName("branchWritePermission").forRepository(REPOSITORY.getId())).build();
+    doReturn(storeFactory.withType(BranchWritePermissions.class).withName("branchWritePermissionGlobal").build())
+      .when(failingStoreFactory.withType(BranchWritePermissions.class).withName("branchWritePermissionGlobal")).build();
+    service = new BranchWritePermissionService(failingStoreFactory, new InMemoryDataStoreFactory(), null, null, groupCollector, meterRegistry);
+    assertThat(service.isPrivileged(USER, REPOSITORY, BRANCH)).isTrue();
+
+    BranchWritePermissions denied = createBranchWPs(true);
+    denied.getPermissions().add(new BranchWritePermission(BRANCH, USER.getName(), GROUP, DENY));
+    assertThatThrownBy(() -> service.setPermissions(REPOSITORY, denied)).isInstanceOf(IllegalStateException.class);
+
+    assertThat(service.isPrivileged(USER, REPOSITORY, BRANCH)).isFalse();
+  }
+
   @Test
   public void shouldAllowAnyUserIfTheConfigIsDisabled() {
     assignGroups(GROUP_NAME);
@@ -334,6 +393,536 @@ public class BranchWritePermissionServiceTest {
     assertThat(privileged).isFalse();
   }
 
+  @Test
+  @SubjectAware(username = "owner", password = "secret")
+  public void shouldUseNewPermissionsAfterTheyHaveBeenStored() {
+    assignGroups(GROUP_NAME);
+
+    BranchWritePermissions permissions = createBranchWPs(true);
+    permissions.getPermissions().add(createBranchWritePermission());
+    store.set(permissions);
+    assertThat(service.isPrivileged(USER, REPOSITORY, BRANCH)).isTrue();
+
+    BranchWritePermissions newPermissions = createBranchWPs(true);
+    newPermissions.getPermissions().add(new BranchWritePermission(BRANCH, GROUP_NAME, true, DENY));
+    service.setPermissions(REPOSITORY, newPermissions);
+
+    assertThat(service.isPrivileged(USER, REPOSITORY, BRANCH)).isFalse();
+  }
+
+  @Test
+  @SubjectAware(username = "owner", password = "secret")
+  public void shouldNotBeAffectedByModificationsOfStoredPermissionsObject() {
+    assignGroups(GROUP_NAME);
+
+    BranchWritePermissions permissions = createBranchWPs(true);
+    permissions.getPermissions().add(createBranchWritePermission());
+    service.setPermissions(REPOSITORY, permissions);
+
+    permissions.getPermissions().clear();
+
+    assertThat(service.isPrivileged(USER, REPOSITORY, BRANCH)).isTrue();
+  }
+
+  @Test
+  public void shouldPassCheckForAllPrivilegedBranches() {
+    assignGroups(GROUP_NAME);
+
+    BranchWritePermissions permissions = createBranchWPs(true);
+    permissions.getPermissions().add(new BranchWritePermission("feature/*", USER.getName(), false, ALLOW));
+    store.set(permissions);
+
+    service.checkAll(USER, REPOSITORY, Arrays.asList(BRANCH, "feature/branch_2"));
+
+    verify(groupCollector, never()).collect(USERNAME);
+  }
+
+  @Test
+  public void shouldReportAllDeniedBranches() {
+    assignGroups(GROUP_NAME);
+
+    BranchWritePermissions permissions = createBranchWPs(true);
+    permissions.getPermissions().add(new BranchWritePermission("feature/*", GROUP_NAME, true, ALLOW));
+    store.set(permissions);
+
+    assertThatThrownBy(() -> service.checkAll(USER, REPOSITORY, Arrays.asList("main", BRANCH, "develop")))
+      .isInstanceOfSatisfying(
+        BranchWritePermissionException.class,
+        exception -> assertThat(exception.getBranches()).containsExactly("main", "develop")
+      );
+    verify(groupCollector, times(1)).collect(USERNAME);
+  }
+
+  @Test
+  public void shouldNotCacheDecisionsOfLargePush() {
+    BranchWritePermissions permissions = createBranchWPs(true);
+    permissions.getPermissions().add(new BranchWritePermission("feature/*", USER.getName(), false, ALLOW));
+    store.set(permissions);
+    List<String> branches = new ArrayList<>();
+    for (int i = 0; i < 100; i++) {
+      branches.add("feature/" + i);
+    }
+
+    service.checkAll(USER, REPOSITORY, branches);
+    assertThat(service.getDecisionCacheStats().requestCount()).isZero();
+
+    service.checkAll(USER, REPOSITORY, branches.subList(0, 2));
+    assertThat(service.getDecisionCacheStats().missCount()).isEqualTo(2);
+  }
+
+  @Test
+  public void shouldPassCheckIfTheConfigIsDisabled() {
+    BranchWritePermissions permissions = createBranchWPs(false);
+    store.set(permissions);
+
+    service.checkAll(USER, REPOSITORY, Collections.singletonList(BRANCH));
+  }
+
+  @Test
+  public void shouldNotStoreMissingConfigurationOnRead() {
+    assertThat(service.isPluginEnabled(REPOSITORY)).isFalse();
+    assertThat(service.isPrivileged(USER, REPOSITORY, BRANCH)).isTrue();
+
+    assertThat(store.get()).isNull();
+  }
+
+  @Test
+  public void shouldKeepEnabledStateInMemory() {
+    store.set(createBranchWPs(true));
+    assertThat(service.isPluginEnabled(REPOSITORY)).isTrue();
+
+    store.set(createBranchWPs(false));
+
+    assertThat(service.isPluginEnabled(REPOSITORY)).isTrue();
+  }
+
+  @Test
+  public void shouldLoadStoreOnceForStateAndRules() {
+    BranchWritePermissions permissions = createBranchWPs(true);
+    permissions.getPermissions().add(createBranchWritePermission());
+    store.set(permissions);
+
+    assertThat(service.isPluginEnabled(REPOSITORY)).isTrue();
+    assertThat(service.isPrivileged(USER, REPOSITORY, BRANCH)).isTrue();
+    service.checkAll(USER, REPOSITORY, Collections.singletonList(BRANCH));
+
+    assertThat(meterRegistry.get("scm.branchwp.store.load").timer().count()).isEqualTo(1);
+  }
+
+  @Test
+  @SubjectAware(username = "admin", password = "secret")
+  public void shouldCompileAgainAfterInheritedChange() {
+    BranchWritePermissions permissions = createBranchWPs(true);
+    permissions.getPermissions().add(createBranchWritePermission());
+    store.set(permissions);
+    assertThat(service.isPrivileged(USER, REPOSITORY, BRANCH)).isTrue();
+
+    BranchWritePermissions namespace = createBranchWPs(true);
+    namespace.getPermissions().add(new BranchWritePermission("*", USER.getName(), false, DENY));
+    service.setNamespacePermissions(REPOSITORY.getNamespace(), namespace);
+
+    assertThat(service.isPrivileged(USER, REPOSITORY, BRANCH)).isFalse();
+    assertThat(meterRegistry.get("scm.branchwp.store.load").timer().count()).isEqualTo(2);
+  }
+
+  @Test
+  public void shouldReadStoreAgainAfterInvalidation() {
+    store.set(createBranchWPs(true));
+    assertThat(service.isPluginEnabled(REPOSITORY)).isTrue();
+
+    store.set(createBranchWPs(false));
+    service.invalidate(REPOSITORY.getId());
+
+    assertThat(service.isPluginEnabled(REPOSITORY)).isFalse();
+  }
+
+  @Test
+  @SubjectAware(username = "owner", password = "secret")
+  public void shouldUpdateEnabledStateOnStore() {
+    store.set(createBranchWPs(false));
+    assertThat(service.isPluginEnabled(REPOSITORY)).isFalse();
+
+    service.setPermissions(REPOSITORY, createBranchWPs(true));
+
+    assertThat(service.isPluginEnabled(REPOSITORY)).isTrue();
+  }
+
+  @Test
+  public void shouldResolveGroupsOnlyOnceForTheSameSubject() {
+    assignGroups(GROUP_NAME);
+
+    BranchWritePermissions permissions = createBranchWPs(true);
+    permissions.getPermissions().add(new BranchWritePermission("feature/*", GROUP_NAME, true, ALLOW));
+    store.set(permissions);
+
+    assertThat(service.isPrivileged(USER, REPOSITORY, BRANCH)).isTrue();
+    assertThat(service.isPrivileged(USER, REPOSITORY, "main")).isFalse();
+    service.checkAll(USER, REPOSITORY, Collections.singletonList(BRANCH));
+
+    verify(groupCollector, times(1)).collect(USERNAME);
+  }
+
+  @Test
+  public void shouldCacheDecisions() {
+    assignGroups(GROUP_NAME);
+
+    BranchWritePermissions permissions = createBranchWPs(true);
+    permissions.getPermissions().add(createBranchWritePermission());
+    store.set(permissions);
+
+    assertThat(service.isPrivileged(USER, REPOSITORY, BRANCH)).isTrue();
+    assertThat(service.isPrivileged(USER, REPOSITORY, BRANCH)).isTrue();
+
+    assertThat(service.getDecisionCacheStats().missCount()).isEqualTo(1);
+    assertThat(service.getDecisionCacheStats().hitCount()).isEqualTo(1);
+  }
+
+  @Test
+  public void shouldResolveGroupsAgainAfterDecisionsHaveBeenInvalidated() {
+    assignGroups(GROUP_NAME);
+
+    BranchWritePermissions permissions = createBranchWPs(true);
+    permissions.getPermissions().add(new BranchWritePermission(BRANCH, GROUP_NAME, true, ALLOW));
+    store.set(permissions);
+
+    assertThat(service.isPrivileged(USER, REPOSITORY, BRANCH)).isTrue();
+    service.invalidateDecisions();
+    assignGroups("group2");
+
+    assertThat(service.isPrivileged(USER, REPOSITORY, BRANCH)).isFalse();
+  }
+
+  @Test
+  public void shouldCountDecisionsAndRefs() {
+    assignGroups(GROUP_NAME);
+
+    BranchWritePermissions permissions = createBranchWPs(true);
+    permissions.getPermissions().add(createBranchWritePermission());
+    store.set(permissions);
+
+    assertThatThrownBy(() -> service.checkAll(USER, REPOSITORY, Arrays.asList(BRANCH, "main", "develop")))
+      .isInstanceOf(BranchWritePermissionException.class);
+
+    assertThat(meterRegistry.get("scm.branchwp.decisions").tag("result", "allow").counter().count()).isEqualTo(1.0);
+    assertThat(meterRegistry.get("scm.branchwp.decisions").tag("result", "deny").counter().count()).isEqualTo(2.0);
+    assertThat(meterRegistry.get("scm.branchwp.push.refs").summary().totalAmount()).isEqualTo(3.0);
+    assertThat(meterRegistry.get("scm.branchwp.evaluation").tag("repository", REPOSITORY.getNamespaceAndName().toString()).timer().count()).isEqualTo(1);
+    assertThat(meterRegistry.get("scm.branchwp.groups.resolve").timer().count()).isZero();
+  }
+
+  @Test
+  public void shouldRemoveEvaluationTimerOfInvalidatedRepository() {
+    store.set(createBranchWPs(true));
+    service.isPrivileged(USER, REPOSITORY, BRANCH);
+    service.isPrivileged(USER, REPOSITORY, "main");
+
+    assertThat(meterRegistry.get("scm.branchwp.evaluation").timers()).hasSize(1);
+
+    service.invalidate(REPOSITORY.getId());
+
+    assertThat(meterRegistry.find("scm.branchwp.evaluation").timers()).isEmpty();
+  }
+
+  @Test
+  public void shouldBuildOneSnapshotForManyBranches() {
+    assignGroups(GROUP_NAME);
+
+    BranchWritePermissions permissions = createBranchWPs(true);
+    permissions.getPermissions().add(new BranchWritePermission("feature/*", GROUP_NAME, true, ALLOW));
+    permissions.getPermissions().add(new BranchWritePermission("feature/secret", USER.getName(), false, DENY));
+    store.set(permissions);
+
+    for (int i = 0; i < 100; i++) {
+      assertThat(service.isPrivileged(USER, REPOSITORY, "feature/" + i)).isTrue();
+    }
+    assertThat(service.isPrivileged(USER, REPOSITORY, "feature/secret")).isFalse();
+    assertThat(service.isPrivileged(USER, REPOSITORY, "main")).isFalse();
+
+    assertThat(meterRegistry.get("cache.gets").tag("cache", "branchwp.snapshots").tag("result", "miss").functionCounter().count()).isEqualTo(1.0);
+    assertThat(meterRegistry.get("cache.gets").tag("cache", "branchwp.snapshots").tag("result", "hit").functionCounter().count()).isEqualTo(101.0);
+  }
+
+  @Test
+  public void shouldMatchGroupRulesOfUserInManyGroups() {
+    String[] groups = new String[300];
+    for (int i = 0; i < groups.length; i++) {
+      groups[i] = "member" + i;
+    }
+    assignGroups(groups);
+
+    BranchWritePermissions permissions = createBranchWPs(true);
+    for (int i = 0; i < 1000; i++) {
+      permissions.getPermissions().add(new BranchWritePermission("team" + i + "/*", "team" + i, true, ALLOW));
+    }
+    permissions.getPermissions().add(new BranchWritePermission("release/*", "member299", true, ALLOW));
+    permissions.getPermissions().add(new BranchWritePermission("release/1.0", "member0", true, DENY));
+    store.set(permissions);
+
+    assertThat(service.isPrivileged(USER, REPOSITORY, "release/2.0")).isTrue();
+    assertThat(service.isPrivileged(USER, REPOSITORY, "release/1.0")).isFalse();
+    assertThat(service.isPrivileged(USER, REPOSITORY, "team1/feature")).isFalse();
+  }
+
+  @Test
+  public void shouldNotResolveGroupsIfNoGroupRuleMatches() {
+    assignGroups(GROUP_NAME);
+
+    BranchWritePermissions permissions = createBranchWPs(true);
+    permissions.getPermissions().add(new BranchWritePermission("main", USER.getName(), false, ALLOW));
+    permissions.getPermissions().add(new BranchWritePermission("feature/*", GROUP_NAME, true, DENY));
+    store.set(permissions);
+
+    assertThat(service.isPrivileged(USER, REPOSITORY, "main")).isTrue();
+    assertThat(service.isPrivileged(USER, REPOSITORY, "develop")).isFalse();
+    verify(groupCollector, never()).collect(USERNAME);
+
+    assertThat(service.isPrivileged(USER, REPOSITORY, BRANCH)).isFalse();
+    verify(groupCollector).collect(USERNAME);
+  }
+
+  @Test
+  public void shouldRebuildSnapshotAfterGroupChange() {
+    assignGroups(GROUP_NAME);
+
+    BranchWritePermissions permissions = createBranchWPs(true);
+    permissions.getPermissions().add(new BranchWritePermission("*", GROUP_NAME, true, ALLOW));
+    store.set(permissions);
+    assertThat(service.isPrivileged(USER, REPOSITORY, "main")).isTrue();
+
+    assignGroups("group2");
+    service.invalidateDecisions();
+
+    assertThat(service.isPrivileged(USER, REPOSITORY, "develop")).isFalse();
+  }
+
+  @Test
+  public void shouldCheckManyBranchesWithOneGroupResolution() {
+    assignGroups(GROUP_NAME);
+
+    BranchWritePermissions permissions = createBranchWPs(true);
+    permissions.getPermissions().add(new BranchWritePermission("feature/*", GROUP_NAME, true, ALLOW));
+    permissions.getPermissions().add(new BranchWritePermission("feature/secret", USER.getName(), false, DENY));
+    store.set(permissions);
+
+    Predicate<String> check = service.createPrivilegeCheck(USER, REPOSITORY);
+
+    assertThat(check.test(BRANCH)).isTrue();
+    assertThat(check.test("feature/secret")).isFalse();
+    assertThat(check.test("main")).isFalse();
+    verify(groupCollector, times(1)).collect(USERNAME);
+    assertThat(service.getDecisionCacheStats().requestCount()).isZero();
+  }
+
+  @Test
+  public void shouldPermitAllBranchesInCheckIfTheConfigIsDisabled() {
+    store.set(createBranchWPs(false));
+
+    Predicate<String> check = service.createPrivilegeCheck(USER, REPOSITORY);
+
+    assertThat(check.test(BRANCH)).isTrue();
+    assertThat(check.test("main")).isTrue();
+  }
+
+  @Test
+  @SubjectAware(username = "owner", password = "secret")
+  public void shouldAddReplaceAndRemoveSinglePermissions() {
+    mockRepositoryManager();
+    BranchWritePermissions permissions = createBranchWPs(true);
+    permissions.getPermissions().add(createBranchWritePermission());
+    store.set(permissions);
+
+    String version = service.addPermission(REPOSITORY.getNamespace(), REPOSITORY.getName(), BranchWritePermissionService.getVersion(permissions), new BranchWritePermission("main", USERNAME, false, ALLOW));
+    assertThat(store.get().getPermissions()).extracting(BranchWritePermission::getBranch).containsExactly(BRANCH, "main");
+    assertThat(version).isEqualTo(BranchWritePermissionService.getVersion(store.get()));
+    assertThat(service.isPrivileged(USER, REPOSITORY, "main")).isTrue();
+
+    version = service.replacePermission(REPOSITORY.getNamespace(), REPOSITORY.getName(), version, 1, new BranchWritePermission("develop", USERNAME, false, ALLOW));
+    assertThat(store.get().getPermissions()).extracting(BranchWritePermission::getBranch).containsExactly(BRANCH, "develop");
+    assertThat(service.isPrivileged(USER, REPOSITORY, "main")).isFalse();
+
+    service.removePermission(REPOSITORY.getNamespace(), REPOSITORY.getName(), version, 0);
+    assertThat(store.get().getPermissions()).extracting(BranchWritePermission::getBranch).containsExactly("develop");
+    assertThat(permissions.getPermissions()).hasSize(1);
+  }
+
+  @Test
+  public void shouldMatchRegexRules() {
+    assignGroups(GROUP_NAME);
+
+    BranchWritePermissions permissions = createBranchWPs(true);
+    permissions.getPermissions().add(new BranchWritePermission("release/[0-9]+\\.[0-9]+", GROUP_NAME, true, ALLOW, REGEX));
+    permissions.getPermissions().add(new BranchWritePermission("release/0\\..*", USER.getName(), false, DENY, REGEX));
+    permissions.getPermissions().add(new BranchWritePermission("feature/*", USER.getName(), false, ALLOW, REGEX));
+    store.set(permissions);
+
+    assertThat(service.isPrivileged(USER, REPOSITORY, "release/1.2")).isTrue();
+    assertThat(service.isPrivileged(USER, REPOSITORY, "release/1.x")).isFalse();
+    assertThat(service.isPrivileged(USER, REPOSITORY, "release/0.9")).isFalse();
+    assertThat(service.isPrivileged(USER, REPOSITORY, "feature//")).isTrue();
+    assertThat(service.isPrivileged(USER, REPOSITORY, "feature/a")).isFalse();
+  }
+
+  @Test
+  @SubjectAware(username = "owner", password = "secret")
+  public void shouldRejectInvalidRegexBeforeStoring() {
+    mockRepositoryManager();
+    BranchWritePermissions permissions = createBranchWPs(true);
+    store.set(permissions);
+    BranchWritePermission backReference = new BranchWritePermission("(a+)\\1", USERNAME, false, ALLOW, REGEX);
+    BranchWritePermission tooLarge = new BranchWritePermission("(a{1000}){1000}", USERNAME, false, ALLOW, REGEX);
+
+    assertThatThrownBy(() -> service.addPermission(REPOSITORY.getNamespace(), REPOSITORY.getName(), null, backReference))
+      .isInstanceOf(InvalidBranchPatternException.class);
+    assertThatThrownBy(() -> service.addPermission(REPOSITORY.getNamespace(), REPOSITORY.getName(), null, tooLarge))
+      .isInstanceOf(InvalidBranchPatternException.class);
+    assertThat(store.get().getPermissions()).isEmpty();
+  }
+
+  @Test
+  @SubjectAware(username = "owner", password = "secret")
+  public void shouldFailOnModificationOfOutdatedVersion() {
+    mockRepositoryManager();
+    BranchWritePermissions permissions = createBranchWPs(true);
+    store.set(permissions);
+    String version = BranchWritePermissionService.getVersion(permissions);
+    service.addPermission(REPOSITORY.getNamespace(), REPOSITORY.getName(), version, createBranchWritePermission());
+
+    assertThatThrownBy(() -> service.removePermission(REPOSITORY.getNamespace(), REPOSITORY.getName(), version, 0))
+      .isInstanceOf(ConcurrentModificationException.class);
+    assertThat(store.get().getPermissions()).hasSize(1);
+  }
+
+  @Test
+  @SubjectAware(username = "owner", password = "secret")
+  public void shouldFailOnModificationOfUnknownIndex() {
+    mockRepositoryManager();
+    store.set(createBranchWPs(true));
+
+    assertThatThrownBy(() -> service.removePermission(REPOSITORY.getNamespace(), REPOSITORY.getName(), null, 0))
+      .isInstanceOf(NotFoundException.class);
+  }
+
+  @Test
+  @SubjectAware(username = "owner", password = "secret")
+  public void shouldKeepVersionInMemory() {
+    mockRepositoryManager();
+    BranchWritePermissions permissions = createBranchWPs(true);
+    store.set(permissions);
+    String version = service.getVersion(REPOSITORY.getNamespace(), REPOSITORY.getName());
+    assertThat(version).isEqualTo(BranchWritePermissionService.getVersion(permissions));
+
+    store.set(createBranchWPs(false));
+
+    assertThat(service.getVersion(REPOSITORY.getNamespace(), REPOSITORY.getName())).isEqualTo(version);
+  }
+
+  @Test
+  @SubjectAware(username = "owner", password = "secret")
+  public void shouldUpdateVersionOnStore() {
+    mockRepositoryManager();
+    store.set(createBranchWPs(true));
+    String version = service.getVersion(REPOSITORY.getNamespace(), REPOSITORY.getName());
+
+    String newVersion = service.setPermissions(REPOSITORY.getNamespace(), REPOSITORY.getName(), version, createBranchWPs(false));
+
+    assertThat(newVersion).isNotEqualTo(version);
+    assertThat(service.getVersion(REPOSITORY.getNamespace(), REPOSITORY.getName())).isEqualTo(newVersion);
+    assertThatThrownBy(() -> service.setPermissions(REPOSITORY.getNamespace(), REPOSITORY.getName(), version, createBranchWPs(true)))
+      .isInstanceOf(ConcurrentModificationException.class);
+  }
+
+  @Test
+  @SubjectAware(username = "admin", password = "secret")
+  public void shouldInheritGlobalPermissions() {
+    BranchWritePermissions global = createBranchWPs(true);
+    global.getPermissions().add(createBranchWritePermission());
+    service.setGlobalPermissions(global);
+
+    assertThat(service.isPrivileged(USER, REPOSITORY, BRANCH)).isTrue();
+    assertThat(service.isPrivileged(USER, REPOSITORY, "develop")).isFalse();
+  }
+
+  @Test
+  @SubjectAware(username = "admin", password = "secret")
+  public void shouldInheritNamespacePermissionsOnlyInNamespace() {
+    BranchWritePermissions namespace = createBranchWPs(true);
+    namespace.getPermissions().add(new BranchWritePermission("*", USER.getName(), false, DENY));
+    service.setNamespacePermissions("other", namespace);
+
+    assertThat(service.isPluginEnabled(REPOSITORY)).isFalse();
+
+    service.setNamespacePermissions(REPOSITORY.getNamespace(), namespace);
+
+    assertThat(service.isPluginEnabled(REPOSITORY)).isTrue();
+    assertThat(service.isPrivileged(USER, REPOSITORY, BRANCH)).isFalse();
+  }
+
+  @Test
+  @SubjectAware(username = "admin", password = "secret")
+  public void shouldCombineInheritedWithRepositoryPermissions() {
+    BranchWritePermissions permissions = createBranchWPs(true);
+    permissions.getPermissions().add(new BranchWritePermission("*", USER.getName(), false, ALLOW));
+    store.set(permissions);
+    BranchWritePermissions global = createBranchWPs(true);
+    global.getPermissions().add(new BranchWritePermission("main", USER.getName(), false, DENY));
+    service.setGlobalPermissions(global);
+
+    assertThat(service.isPrivileged(USER, REPOSITORY, BRANCH)).isTrue();
+    assertThat(service.isPrivileged(USER, REPOSITORY, "main")).isFalse();
+  }
+
+  @Test
+  @SubjectAware(username = "admin", password = "secret")
+  public void shouldIgnoreDisabledGlobalPermissions() {
+    BranchWritePermissions global = createBranchWPs(false);
+    global.getPermissions().add(new BranchWritePermission("*", USER.getName(), false, DENY));
+    service.setGlobalPermissions(global);
+
+    assertThat(service.isPluginEnabled(REPOSITORY)).isFalse();
+    assertThat(service.getGlobalPermissions().getPermissions()).hasSize(1);
+  }
+
+  @Test
+  @SubjectAware(username = "admin", password = "secret")
+  public void shouldReturnStateOfInheritedPermissions() {
+    mockRepositoryManager();
+    service.setGlobalPermissions(createBranchWPs(false));
+    service.setNamespacePermissions(REPOSITORY.getNamespace(), createBranchWPs(true));
+
+    BranchWritePermissionService.InheritedPermissions inherited = service.getInheritedPermissions(REPOSITORY.getNamespace(), REPOSITORY.getName());
+
+    assertThat(inherited.global()).isFalse();
+    assertThat(inherited.namespace()).isTrue();
+  }
+
+  @Test
+  @SubjectAware(username = "admin", password = "secret")
+  public void shouldDropCachedDecisionsOnGlobalChange() {
+    BranchWritePermissions global = createBranchWPs(true);
+    global.getPermissions().add(createBranchWritePermission());
+    service.setGlobalPermissions(global);
+    assertThat(service.isPrivileged(USER, REPOSITORY, BRANCH)).isTrue();
+
+    global = createBranchWPs(true);
+    global.getPermissions().add(new BranchWritePermission(BRANCH, USER.getName(), false, DENY));
+    service.setGlobalPermissions(global);
+
+    assertThat(service.isPrivileged(USER, REPOSITORY, BRANCH)).isFalse();
+  }
+
+  @Test
+  public void shouldFailOnStoringGlobalPermissionsWithoutPermission() {
+    BranchWritePermissions global = createBranchWPs(true);
+
+    assertThatThrownBy(() -> service.setGlobalPermissions(global)).isInstanceOf(AuthorizationException.class);
+  }
+
+  private void mockRepositoryManager() {
+    RepositoryManager repositoryManager = mock(RepositoryManager.class);
+    when(repositoryManager.get(REPOSITORY.getNamespaceAndName())).thenReturn(REPOSITORY);
+    service = new BranchWritePermissionService(storeFactory, new InMemoryDataStoreFactory(), null, repositoryManager, groupCollector, meterRegistry);
+  }
+
   private BranchWritePermission createBranchWritePermission() {
     return new BranchWritePermission(BRANCH, USER.getName(), GROUP, TYPE);
   }
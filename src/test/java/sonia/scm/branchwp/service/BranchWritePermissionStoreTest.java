@@ -0,0 +1,151 @@
+/*
+ * Copyright (c) 2020 - present Cloudogu GmbH
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License as published by the Free
+ * Software Foundation, version 3.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see https://www.gnu.org/licenses/.
+ */
+package sonia.scm.branchwp.service;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.Answers;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+import sonia.scm.store.Blob;
+import sonia.scm.store.BlobStore;
+import sonia.scm.store.BlobStoreFactory;
+import sonia.scm.store.ConfigurationStore;
+import sonia.scm.store.ConfigurationStoreFactory;
+import sonia.scm.store.InMemoryConfigurationStoreFactory;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Optional;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.lenient;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyNoInteractions;
+import static org.mockito.Mockito.when;
+import static sonia.scm.branchwp.service.BranchWritePermission.Type.ALLOW;
+
+@ExtendWith(MockitoExtension.class)
+class BranchWritePermissionStoreTest {
+
+  private static final String REPOSITORY_ID = "42";
+
+  @Mock(answer = Answers.RETURNS_DEEP_STUBS)
+  private BlobStoreFactory blobStoreFactory;
+
+  @Mock
+  private BlobStore blobStore;
+
+  @Mock
+  private Blob blob;
+
+  private final ByteArrayOutputStream content = new ByteArrayOutputStream();
+
+  private ConfigurationStore<BranchWritePermissions> xmlStore;
+  private ConfigurationStoreFactory configurationStoreFactory;
+
+  @BeforeEach
+  void setUpStores() {
+    configurationStoreFactory = new InMemoryConfigurationStoreFactory();
+    xmlStore = configurationStoreFactory.withType(BranchWritePermissions.class).withName(BranchWritePermissionStore.STORE_NAME).forRepository(REPOSITORY_ID).build();
+    lenient().when(blobStoreFactory.withName(BranchWritePermissionStore.STORE_NAME).forRepository(REPOSITORY_ID).build()).thenReturn(blobStore);
+  }
+
+  @Test
+  void shouldWriteXmlAndBinaryAndReadBinary() throws IOException {
+    BranchWritePermissionStore store = new BranchWritePermissionStore(configurationStoreFactory, null, blobStoreFactory, true);
+    when(blobStore.getOptional("permissions")).thenReturn(Optional.empty(), Optional.of(blob));
+    when(blobStore.create("permissions")).thenReturn(blob);
+    when(blob.getOutputStream()).thenReturn(content);
+    BranchWritePermissions permissions = createPermissions();
+
+    store.set(REPOSITORY_ID, permissions);
+    when(blob.getInputStream()).thenReturn(new ByteArrayInputStream(content.toByteArray()));
+    BranchWritePermissions read = store.get(REPOSITORY_ID).orElseThrow();
+
+    assertThat(xmlStore.get()).isSameAs(permissions);
+    verify(blob).commit();
+    assertThat(read).isNotSameAs(permissions).usingRecursiveComparison().isEqualTo(permissions);
+    assertThat(markerStore().getOptional()).isPresent();
+    verify(blobStoreFactory.withName(BranchWritePermissionStore.STORE_NAME).forRepository(REPOSITORY_ID)).build();
+  }
+
+  @Test
+  void shouldFallBackToXmlForUnreadableBinary() throws IOException {
+    BranchWritePermissionStore store = new BranchWritePermissionStore(configurationStoreFactory, null, blobStoreFactory, true);
+    BranchWritePermissions permissions = createPermissions();
+    xmlStore.set(permissions);
+    when(blobStore.getOptional("permissions")).thenReturn(Optional.of(blob));
+    when(blob.getInputStream()).thenReturn(new ByteArrayInputStream("<branch-write-permissions/>".getBytes()));
+
+    assertThat(store.get(REPOSITORY_ID)).containsSame(permissions);
+  }
+
+  @Test
+  void shouldKeepXmlAndRemoveBinaryIfBinaryCouldNotBeWritten() throws IOException {
+    BranchWritePermissionStore store = new BranchWritePermissionStore(configurationStoreFactory, null, blobStoreFactory, true);
+    when(blobStore.getOptional("permissions")).thenReturn(Optional.of(blob), Optional.empty());
+    when(blob.getOutputStream()).thenThrow(new IOException("disk full"));
+    BranchWritePermissions permissions = createPermissions();
+
+    store.set(REPOSITORY_ID, permissions);
+
+    verify(blobStore).remove("permissions");
+    verify(blob, never()).commit();
+    assertThat(store.get(REPOSITORY_ID)).containsSame(permissions);
+  }
+
+  @Test
+  void shouldRemoveBinaryIfDisabled() {
+    BranchWritePermissionStore store = new BranchWritePermissionStore(configurationStoreFactory, null, blobStoreFactory, false);
+    markerStore().set(new BinaryFormatMarker());
+    when(blobStore.getOptional("permissions")).thenReturn(Optional.of(blob));
+    BranchWritePermissions permissions = createPermissions();
+
+    store.set(REPOSITORY_ID, permissions);
+
+    assertThat(store.get(REPOSITORY_ID)).containsSame(permissions);
+    verify(blobStore).remove("permissions");
+    verify(blobStore, never()).create("permissions");
+    assertThat(markerStore().getOptional()).isEmpty();
+  }
+
+  @Test
+  void shouldNotTouchBlobStoreWithoutMarkerIfDisabled() {
+    BranchWritePermissionStore store = new BranchWritePermissionStore(configurationStoreFactory, null, blobStoreFactory, false);
+    BranchWritePermissions permissions = createPermissions();
+
+    store.set(REPOSITORY_ID, permissions);
+
+    assertThat(store.get(REPOSITORY_ID)).containsSame(permissions);
+    verify(blobStoreFactory.withName(BranchWritePermissionStore.STORE_NAME).forRepository(REPOSITORY_ID), never()).build();
+    verifyNoInteractions(blobStore);
+  }
+
+  private ConfigurationStore<BinaryFormatMarker> markerStore() {
+    return configurationStoreFactory.withType(BinaryFormatMarker.class).withName(BranchWritePermissionStore.BINARY_MARKER_STORE_NAME).forRepository(REPOSITORY_ID).build();
+  }
+
+  private BranchWritePermissions createPermissions() {
+    BranchWritePermissions permissions = new BranchWritePermissions();
+    permissions.setEnabled(true);
+    permissions.getPermissions().add(new BranchWritePermission("main", "trillian", false, ALLOW));
+    return permissions;
+  }
+}
@@ -0,0 +1,110 @@
+/*
+ * Copyright (c) 2020 - present Cloudogu GmbH
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License as published by the Free
+ * Software Foundation, version 3.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see https://www.gnu.org/licenses/.
+ */
+package sonia.scm.branchwp.service;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static sonia.scm.branchwp.service.BranchWritePermission.PatternType.GLOB;
+import static sonia.scm.branchwp.service.BranchWritePermission.PatternType.REGEX;
+import static sonia.scm.branchwp.service.BranchWritePermission.Type.ALLOW;
+import static sonia.scm.branchwp.service.BranchWritePermission.Type.DENY;
+
+class BranchWritePermissionsCodecTest {
+
+  @Test
+  void shouldReadWrittenPermissions() throws IOException {
+    BranchWritePermissions permissions = new BranchWritePermissions();
+    permissions.setEnabled(true);
+    permissions.getPermissions().add(new BranchWritePermission("main", "trillian", false, ALLOW));
+    permissions.getPermissions().add(new BranchWritePermission("release/*", "devs", true, DENY));
+    permissions.getPermissions().add(new BranchWritePermission("feature/{username}/*", "devs", true, ALLOW));
+    permissions.getPermissions().add(new BranchWritePermission("\u00fcml\u00e4ut", null, false, null));
+    permissions.getPermissions().add(new BranchWritePermission("release/[0-9]+", "devs", true, ALLOW, REGEX));
+    permissions.getPermissions().add(new BranchWritePermission("hotfix/*", "devs", true, DENY, GLOB));
+
+    BranchWritePermissions read = BranchWritePermissionsCodec.read(new ByteArrayInputStream(write(permissions)));
+
+    assertThat(read).usingRecursiveComparison().isEqualTo(permissions);
+  }
+
+  @Test
+  void shouldWriteRepeatedStringsOnlyOnce() throws IOException {
+    BranchWritePermissions permissions = new BranchWritePermissions();
+    for (int i = 0; i < 100; i++) {
+      permissions.getPermissions().add(new BranchWritePermission("release/*", "developers", true, ALLOW));
+    }
+
+    assertThat(write(permissions)).hasSizeLessThan(400);
+  }
+
+  @Test
+  void shouldFailForOtherContent() {
+    ByteArrayInputStream input = new ByteArrayInputStream("<branch-write-permissions/>".getBytes());
+
+    assertThatThrownBy(() -> BranchWritePermissionsCodec.read(input)).isInstanceOf(IOException.class);
+  }
+
+  @Test
+  void shouldFailForTruncatedContent() throws IOException {
+    BranchWritePermissions permissions = new BranchWritePermissions();
+    permissions.getPermissions().add(new BranchWritePermission("main", "trillian", false, ALLOW));
+    byte[] bytes = write(permissions);
+    ByteArrayInputStream input = new ByteArrayInputStream(bytes, 0, bytes.length - 3);
+
+    assertThatThrownBy(() -> BranchWritePermissionsCodec.read(input)).isInstanceOf(IOException.class);
+  }
+
+  @Test
+  void shouldFailForTooManyStrings() throws IOException {
+    ByteArrayOutputStream output = new ByteArrayOutputStream();
+    DataOutputStream data = new DataOutputStream(output);
+    data.writeInt(0x42575031);
+    data.writeByte(1);
+    data.writeBoolean(true);
+    // varint of Integer.MAX_VALUE as string count
+    data.write(new byte[]{(byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, 0x07});
+    ByteArrayInputStream input = new ByteArrayInputStream(output.toByteArray());
+
+    assertThatThrownBy(() -> BranchWritePermissionsCodec.read(input)).isInstanceOf(IOException.class);
+  }
+
+  @Test
+  void shouldFailForMoreRulesThanContent() throws IOException {
+    byte[] bytes = write(new BranchWritePermissions());
+    // replace the rule count 0 with a large count without content
+    byte[] corrupt = new byte[bytes.length + 2];
+    System.arraycopy(bytes, 0, corrupt, 0, bytes.length - 1);
+    corrupt[bytes.length - 1] = (byte) 0xFF;
+    corrupt[bytes.length] = (byte) 0xFF;
+    corrupt[bytes.length + 1] = 0x3F;
+    ByteArrayInputStream input = new ByteArrayInputStream(corrupt);
+
+    assertThatThrownBy(() -> BranchWritePermissionsCodec.read(input)).isInstanceOf(IOException.class);
+  }
+
+  private byte[] write(BranchWritePermissions permissions) throws IOException {
+    ByteArrayOutputStream output = new ByteArrayOutputStream();
+    BranchWritePermissionsCodec.write(permissions, output);
+    return output.toByteArray();
+  }
+}
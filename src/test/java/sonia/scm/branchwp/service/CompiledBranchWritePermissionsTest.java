@@ -0,0 +1,50 @@
+/*
+ * Copyright (c) 2020 - present Cloudogu GmbH
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License as published by the Free
+ * Software Foundation, version 3.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see https://www.gnu.org/licenses/.
+ */
+
+
+package sonia.scm.branchwp.service;
+
+import org.junit.jupiter.api.Test;
+import sonia.scm.user.User;
+
+import java.util.Set;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static sonia.scm.branchwp.service.BranchWritePermission.Type.ALLOW;
+import static sonia.scm.branchwp.service.BranchWritePermission.Type.DENY;
+
+class CompiledBranchWritePermissionsTest {
+
+  private static final User USER = new User("trillian", "Tricia McMillan", "trillian@hitchhiker.com");
+
+  @Test
+  void shouldMatchThousandsOfSimpleRulesWithTheAutomaton() {
+    BranchWritePermissions permissions = new BranchWritePermissions();
+    permissions.setEnabled(true);
+    String[] patterns = BranchAutomatonTest.realisticPatterns();
+    for (int i = 0; i < patterns.length; i++) {
+      permissions.getPermissions().add(new BranchWritePermission(patterns[i], "group" + (i % 50), true, ALLOW));
+    }
+    permissions.getPermissions().add(new BranchWritePermission("team42/*", USER.getName(), false, DENY));
+
+    CompiledBranchWritePermissions compiled = CompiledBranchWritePermissions.compile(permissions);
+
+    assertThat(compiled.getAutomatonRuleCount()).isEqualTo(permissions.getPermissions().size());
+    assertThat(compiled.isPrivileged(USER, Set.of("group0"), "release/1000.0")).isTrue();
+    assertThat(compiled.isPrivileged(USER, Set.of("group0"), "release/1001.0")).isFalse();
+    assertThat(compiled.isPrivileged(USER, Set.of("group42"), "team42/feature")).isFalse();
+  }
+}
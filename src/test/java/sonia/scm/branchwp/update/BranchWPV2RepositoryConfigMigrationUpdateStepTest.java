@@ -83,7 +83,61 @@ public class BranchWPV2RepositoryConfigMigrationUpdateStepTest {
     assertThat(getConfigStore().get()).isNull();
   }
 
+  @Test
+  public void shouldMigrateRepositoriesInBatches() {
+    updateStep = new BranchWPV2RepositoryConfigMigrationUpdateStep(testUtil.getPropertyDAO(), storeFactory, 2, 1);
+    testUtil.mockRepositoryProperties(
+      new V1PropertyDaoTestUtil.PropertiesForRepository("repo1", ImmutableMap.of("branchwp.permissions", "master,Tony;")),
+      new V1PropertyDaoTestUtil.PropertiesForRepository("repo2", ImmutableMap.of("branchwp.permissions", "develop,@Edi;")),
+      new V1PropertyDaoTestUtil.PropertiesForRepository("repo3", ImmutableMap.of("branchwp.permissions", "!feature/*,Zaphod;"))
+    );
+
+    updateStep.doUpdate();
+
+    assertThat(getConfigStore("repo1").get().getPermissions()).extracting("branch").containsExactly("master");
+    assertThat(getConfigStore("repo2").get().getPermissions()).extracting("name").containsExactly("Edi");
+    assertThat(getConfigStore("repo3").get().getPermissions()).extracting("type").containsExactly(BranchWritePermission.Type.DENY);
+    assertThat(getCheckpointStore().getOptional()).isEmpty();
+  }
+
+  @Test
+  public void shouldSkipRepositoriesOfCheckpoint() {
+    getCheckpointStore().set(new MigrationCheckpoint(1, "repo1"));
+    testUtil.mockRepositoryProperties(
+      new V1PropertyDaoTestUtil.PropertiesForRepository("repo1", ImmutableMap.of("branchwp.permissions", "master,Tony;")),
+      new V1PropertyDaoTestUtil.PropertiesForRepository("repo2", ImmutableMap.of("branchwp.permissions", "develop,@Edi;"))
+    );
+
+    updateStep.doUpdate();
+
+    assertThat(getConfigStore("repo1").get()).isNull();
+    assertThat(getConfigStore("repo2").get().getPermissions()).hasSize(1);
+  }
+
+  @Test
+  public void shouldMigrateAllRepositoriesIfCheckpointDoesNotMatch() {
+    getCheckpointStore().set(new MigrationCheckpoint(1, "repo2"));
+    testUtil.mockRepositoryProperties(
+      new V1PropertyDaoTestUtil.PropertiesForRepository("repo1", ImmutableMap.of("branchwp.permissions", "master,Tony;")),
+      new V1PropertyDaoTestUtil.PropertiesForRepository("repo2", ImmutableMap.of("branchwp.permissions", "develop,@Edi;"))
+    );
+
+    updateStep.doUpdate();
+
+    assertThat(getConfigStore("repo1").get().getPermissions()).hasSize(1);
+    assertThat(getConfigStore("repo2").get().getPermissions()).hasSize(1);
+    assertThat(getCheckpointStore().getOptional()).isEmpty();
+  }
+
   private ConfigurationStore<BranchWritePermissions> getConfigStore() {
-    return storeFactory.withType(BranchWritePermissions.class).withName(STORE_NAME).forRepository(REPO_NAME).build();
+    return getConfigStore(REPO_NAME);
+  }
+
+  private ConfigurationStore<BranchWritePermissions> getConfigStore(String repositoryId) {
+    return storeFactory.withType(BranchWritePermissions.class).withName(STORE_NAME).forRepository(repositoryId).build();
+  }
+
+  private ConfigurationStore<MigrationCheckpoint> getCheckpointStore() {
+    return storeFactory.withType(MigrationCheckpoint.class).withName("branchWritePermissionMigration").build();
   }
 }
@@ -0,0 +1,64 @@
+/*
+ * Copyright (c) 2020 - present Cloudogu GmbH
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License as published by the Free
+ * Software Foundation, version 3.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see https://www.gnu.org/licenses/.
+ */
+
+package sonia.scm.branchwp.update;
+
+import org.junit.Test;
+import sonia.scm.branchwp.service.BranchWritePermission;
+
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static sonia.scm.branchwp.service.BranchWritePermission.Type.ALLOW;
+import static sonia.scm.branchwp.service.BranchWritePermission.Type.DENY;
+
+public class V1PermissionParserTest {
+
+  @Test
+  public void shouldParseUserAndGroupPermissions() {
+    List<BranchWritePermission> permissions = V1PermissionParser.parse("!master,Tony;feature/*,@Edi;");
+
+    assertThat(permissions).usingRecursiveFieldByFieldElementComparator().containsExactly(
+      new BranchWritePermission("master", "Tony", false, DENY),
+      new BranchWritePermission("feature/*", "Edi", true, ALLOW)
+    );
+  }
+
+  @Test
+  public void shouldParseLastEntryWithoutSeparator() {
+    List<BranchWritePermission> permissions = V1PermissionParser.parse("master,Tony");
+
+    assertThat(permissions).usingRecursiveFieldByFieldElementComparator().containsExactly(
+      new BranchWritePermission("master", "Tony", false, ALLOW)
+    );
+  }
+
+  @Test
+  public void shouldIgnoreAdditionalFields() {
+    List<BranchWritePermission> permissions = V1PermissionParser.parse("master,@Edi,something");
+
+    assertThat(permissions).usingRecursiveFieldByFieldElementComparator().containsExactly(
+      new BranchWritePermission("master", "Edi", true, ALLOW)
+    );
+  }
+
+  @Test
+  public void shouldSkipEntriesWithoutName() {
+    List<BranchWritePermission> permissions = V1PermissionParser.parse(";master;develop,;main,Tony");
+
+    assertThat(permissions).extracting("branch").containsExactly("main");
+  }
+}